@@ -0,0 +1,162 @@
+/**
+ * 
+ * Records which packets of the sliding window have been acknowledged. A
+ * cumulative base marks the first packet that has not been acknowledged yet;
+ * everything before it is known to have arrived. Packets from the base onward
+ * are tracked as single bits in a ring indexed by packet number.
+ * 
+ * Only the receptor thread calls mark(), which is the only method that
+ * changes the bitmap, so no locking or compare-and-swap is needed. The sending
+ * thread can call isAcked() and getBase() at any time without contention.
+ * 
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class AckBitmap {
+	private AtomicLongArray words;
+	private int capacity;
+	private volatile int base;
+
+	/**
+	 * Constructor for AckBitmap
+	 * 
+	 * @param window
+	 *            The largest number of packets that can be in flight at once
+	 * @param base
+	 *            Number of the first packet to be acknowledged
+	 */
+	public AckBitmap(int window, int base) {
+		// A power of two keeps the ring consistent across wraparound
+		this.capacity = Math.max(64, Integer.highestOneBit(Math.max(1,
+				window - 1)) << 1);
+		this.words = new AtomicLongArray(capacity / 64);
+		this.base = base;
+	}
+
+	/**
+	 * Marks a packet as acknowledged and slides the base over every packet
+	 * that is now contiguously acknowledged. Must only be called from a
+	 * single thread.
+	 * 
+	 * @param number
+	 *            Number of the acknowledged packet
+	 * @return True if the acknowledgment was new, false if it was a duplicate
+	 *         or outside the window
+	 */
+	public boolean mark(int number) {
+		int current = base;
+		if (Utilities.seqLessThan(number, current)
+				|| Utilities.seqCompare(number, current) >= capacity) {
+			return false;
+		}
+		if (isSet(number)) {
+			return false;
+		}
+		int word = (number & (capacity - 1)) >>> 6;
+		words.set(word, words.get(word) | bitOf(number));
+
+		slide(current);
+		return true;
+	}
+
+	/**
+	 * Marks every packet before the given number as acknowledged, as told
+	 * by a cumulative acknowledgment. Must only be called from a single
+	 * thread.
+	 * 
+	 * @param number
+	 *            Number of the first packet that has not been acknowledged
+	 * @return True if the base moved
+	 */
+	public boolean advanceTo(int number) {
+		int current = base;
+		if (!Utilities.seqLessThan(current, number)) {
+			return false;
+		}
+		while (Utilities.seqLessThan(current, number)) {
+			clear(current);
+			current++;
+		}
+		slide(current);
+		return true;
+	}
+
+	/**
+	 * Marks everything an acknowledgment reports as received. A selective
+	 * acknowledgment moves the base and marks each packet in its bitmap,
+	 * while a plain acknowledgment marks a single packet.
+	 * 
+	 * @param ack
+	 *            A valid acknowledgment in byte array form
+	 * @param length
+	 *            The length of the acknowledgment
+	 * @return True if any packet was newly acknowledged
+	 */
+	public boolean markAck(byte[] ack, int length) {
+		int number = Utilities.getPacketNum(ack);
+		if (!Utilities.isSack(ack)) {
+			return mark(number);
+		}
+		boolean progress = advanceTo(number);
+		int bits = (length - Utilities.ACK_SIZE) * 8;
+		for (int x = 0; x < bits; x++) {
+			if (Utilities.getSackBit(ack, length, x) && mark(number + 1 + x)) {
+				progress = true;
+			}
+		}
+		return progress;
+	}
+
+	/**
+	 * Checks whether a packet has been acknowledged
+	 * 
+	 * @param number
+	 *            The packet number
+	 * @return True if the packet has been acknowledged
+	 */
+	public boolean isAcked(int number) {
+		int current = base;
+		if (Utilities.seqLessThan(number, current)) {
+			return true;
+		} else if (Utilities.seqCompare(number, current) >= capacity) {
+			return false;
+		}
+		return isSet(number);
+	}
+
+	// Get the number of the first packet that has not been acknowledged
+	public int getBase() {
+		return base;
+	}
+
+	// Whether the bit for the given packet number is set
+	private boolean isSet(int number) {
+		int word = (number & (capacity - 1)) >>> 6;
+		return (words.get(word) & bitOf(number)) != 0;
+	}
+
+	// Slide the base over every contiguously acknowledged packet from current
+	private void slide(int current) {
+		while (isSet(current)) {
+			clear(current);
+			current++;
+		}
+		base = current;
+	}
+
+	/**
+	 * Clears the bit for a packet the base is about to pass. The slot is
+	 * cleared before the new base is published, so that it is never mistaken
+	 * for a packet one capacity ahead.
+	 */
+	private void clear(int number) {
+		int slot = (number & (capacity - 1)) >>> 6;
+		words.set(slot, words.get(slot) & ~bitOf(number));
+	}
+
+	// Mask of the bit for the given packet number within its word
+	private long bitOf(int number) {
+		return 1L << (number & 63);
+	}
+}
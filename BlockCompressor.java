@@ -0,0 +1,184 @@
+/**
+ *
+ * Compression stage in front of packetization. The file is cut into
+ * independent blocks that are deflated in parallel on the fork-join pool and
+ * written, in order, to a temporary file of tagged blocks that is then sent
+ * instead of the file. Every packet of such a transfer carries
+ * FLAG_COMPRESSED, and the receiving FileSink turns the blocks back into the
+ * file with a BlockInflater.
+ *
+ * Every block starts with a header (network byte order):
+ *
+ *  0		Tag (TAG_RAW or TAG_DEFLATE)
+ *  1-4		Length of the block in the original file
+ *  5-8		Length of the stored data that follows
+ *
+ * Data that does not shrink, such as JPEG images or archives, is stored raw.
+ * A small sample of every block is deflated first, so an incompressible
+ * block costs a fraction of a full compression attempt.
+ *
+ * Packet numbers and the end-of-file flag depend on the length of what is
+ * sent, so the whole file is compressed before the first packet goes out.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.Deflater;
+
+public class BlockCompressor {
+	public static final int BLOCK_SIZE = 1 << 17;
+	public static final int BLOCK_HEADER_SIZE = 9;
+	public static final byte TAG_RAW = 0;
+	public static final byte TAG_DEFLATE = 1;
+	private static int LEVEL = Deflater.BEST_SPEED;
+	private static int SAMPLE_SIZE = 4096;
+	// A sample has to shrink to this fraction for the block to be deflated
+	private static double SAMPLE_RATIO = 0.9;
+
+	// Each worker of the pool keeps its own deflater
+	private static ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		protected Deflater initialValue() {
+			return new Deflater(LEVEL);
+		}
+	};
+
+	public static class EncodeTask extends RecursiveTask<ByteBuffer> {
+		private static final long serialVersionUID = 1L;
+		private byte[] raw;
+
+		/**
+		 * Constructor for EncodeTask
+		 *
+		 * @param raw
+		 *            The block as read from the file
+		 */
+		public EncodeTask(byte[] raw) {
+			this.raw = raw;
+		}
+
+		protected ByteBuffer compute() {
+			return encode(raw);
+		}
+	}
+
+	/**
+	 * Compresses a file into a temporary file of tagged blocks, which is
+	 * deleted when the program exits
+	 *
+	 * @param filepath
+	 *            Path of the file to compress
+	 * @return Path of the file of blocks
+	 * @throws IOException
+	 */
+	public static String compress(String filepath) throws IOException {
+		File blocks = File.createTempFile("transfer", ".blocks");
+		blocks.deleteOnExit();
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		// Enough blocks in flight to keep every worker busy
+		int ahead = 2 * pool.getParallelism();
+
+		try (FileChannel in = FileChannel.open(Paths.get(filepath),
+				StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(blocks.toPath(),
+						StandardOpenOption.WRITE)) {
+			long size = in.size();
+			long offset = 0;
+			ArrayDeque<ForkJoinTask<ByteBuffer>> pending = new ArrayDeque<ForkJoinTask<ByteBuffer>>();
+
+			while (offset < size || !pending.isEmpty()) {
+				while (offset < size && pending.size() < ahead) {
+					byte[] raw = new byte[(int) Math.min(BLOCK_SIZE, size
+							- offset)];
+					ByteBuffer read = ByteBuffer.wrap(raw);
+					while (read.hasRemaining()) {
+						if (in.read(read, offset + read.position()) < 0) {
+							throw new IOException("File shrank while reading");
+						}
+					}
+					pending.addLast(pool.submit(new EncodeTask(raw)));
+					offset += raw.length;
+				}
+				ByteBuffer encoded = pending.pollFirst().join();
+				while (encoded.hasRemaining()) {
+					out.write(encoded);
+				}
+			}
+		}
+		return blocks.getPath();
+	}
+
+	/**
+	 * Encodes a single block, deflated if that makes it smaller and raw
+	 * otherwise
+	 *
+	 * @param raw
+	 *            The block as read from the file
+	 * @return The tagged block, header included
+	 */
+	public static ByteBuffer encode(byte[] raw) {
+		byte[] block = new byte[BLOCK_HEADER_SIZE + raw.length];
+		int stored = 0;
+		if (isCompressible(raw)) {
+			stored = deflate(raw, raw.length, block, BLOCK_HEADER_SIZE,
+					raw.length - 1);
+		}
+		ByteBuffer encoded = ByteBuffer.wrap(block);
+		if (stored > 0) {
+			encoded.put(TAG_DEFLATE);
+		} else {
+			encoded.put(TAG_RAW);
+			System.arraycopy(raw, 0, block, BLOCK_HEADER_SIZE, raw.length);
+			stored = raw.length;
+		}
+		encoded.putInt(raw.length);
+		encoded.putInt(stored);
+		encoded.position(0);
+		encoded.limit(BLOCK_HEADER_SIZE + stored);
+		return encoded;
+	}
+
+	// Whether a sample from the start of the block shrinks enough
+	private static boolean isCompressible(byte[] raw) {
+		int length = Math.min(SAMPLE_SIZE, raw.length);
+		int limit = (int) (length * SAMPLE_RATIO);
+		return limit > 0 && deflate(raw, length, new byte[limit], 0, limit) > 0;
+	}
+
+	/**
+	 * Deflates data into an array, giving up once it does not fit
+	 *
+	 * @param input
+	 *            Data to deflate
+	 * @param length
+	 *            Length of the data at the start of input
+	 * @param output
+	 *            Array to deflate into
+	 * @param offset
+	 *            Offset in output to start at
+	 * @param limit
+	 *            Maximum length of the deflated data
+	 * @return The length of the deflated data, or 0 if it exceeds the limit
+	 */
+	private static int deflate(byte[] input, int length, byte[] output,
+			int offset, int limit) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(input, 0, length);
+		deflater.finish();
+		int written = 0;
+		while (!deflater.finished() && written < limit) {
+			written += deflater.deflate(output, offset + written, limit
+					- written);
+		}
+		return deflater.finished() ? written : 0;
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ *
+ * Receiving side of BlockCompressor. The tagged blocks are fed in as they
+ * are received, in order and in pieces of any size, and every block is
+ * written to the output file as soon as it is complete. Only the block
+ * being received is held in memory.
+ *
+ * A manifest trailer after the last block is recognized by its first byte,
+ * which is not a block tag, and collected for the FileSink to check.
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class BlockInflater {
+	private FileChannel channel;
+	private long position;
+	private Inflater inflater;
+	private ByteBuffer header;
+	private ByteBuffer stored;
+	private byte[] output;
+	private ManifestVerifier verifier;
+	private ByteArrayOutputStream trailer;
+
+	/**
+	 * Constructor for BlockInflater
+	 *
+	 * @param channel
+	 *            Channel of the output file
+	 * @param position
+	 *            Offset in the output file to start writing at
+	 * @param verifier
+	 *            Verifier told about every block written, or null
+	 */
+	public BlockInflater(FileChannel channel, long position,
+			ManifestVerifier verifier) {
+		this.channel = channel;
+		this.position = position;
+		this.verifier = verifier;
+		this.inflater = new Inflater();
+		this.header = ByteBuffer.allocate(BlockCompressor.BLOCK_HEADER_SIZE);
+		this.stored = null;
+		this.output = new byte[BlockCompressor.BLOCK_SIZE];
+	}
+
+	/**
+	 * Feeds the next piece of the stream of blocks
+	 *
+	 * @param data
+	 *            The piece, from its position to its limit, which is
+	 *            consumed
+	 * @throws IOException
+	 *             If the stream is not a valid stream of blocks
+	 */
+	public void write(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			if (trailer == null && stored == null && header.position() == 0
+					&& data.get(data.position()) == Manifest.TRAILER_TAG) {
+				// The blocks are over, the rest is the manifest
+				trailer = new ByteArrayOutputStream();
+			}
+			if (trailer != null) {
+				byte[] rest = new byte[data.remaining()];
+				data.get(rest);
+				trailer.write(rest, 0, rest.length);
+				return;
+			}
+			if (stored == null) {
+				fill(header, data);
+				if (header.hasRemaining()) {
+					return;
+				}
+				int length = header.getInt(1);
+				int stored_length = header.getInt(5);
+				if (length < 0 || length > BlockCompressor.BLOCK_SIZE
+						|| stored_length < 0 || stored_length > length) {
+					throw new IOException("Corrupt block header");
+				}
+				stored = ByteBuffer.allocate(stored_length);
+			}
+			fill(stored, data);
+			if (!stored.hasRemaining()) {
+				decode();
+				header.clear();
+				stored = null;
+			}
+		}
+	}
+
+	/**
+	 * Checks that the stream ended on a block boundary
+	 *
+	 * @return The offset in the output file after the last block
+	 * @throws IOException
+	 *             If a block was cut off
+	 */
+	public long finish() throws IOException {
+		inflater.end();
+		if (stored != null || header.position() > 0) {
+			throw new IOException("Stream of blocks ends within a block");
+		}
+		return position;
+	}
+
+	// Get the manifest trailer that followed the blocks, or null
+	public byte[] getTrailer() {
+		return trailer == null ? null : trailer.toByteArray();
+	}
+
+	// Copy as much of data as fits into dest
+	private static void fill(ByteBuffer dest, ByteBuffer data) {
+		int length = Math.min(dest.remaining(), data.remaining());
+		dest.put(dest.position(), data, data.position(), length);
+		dest.position(dest.position() + length);
+		data.position(data.position() + length);
+	}
+
+	// Write out the block that has just been completed
+	private void decode() throws IOException {
+		int length = header.getInt(1);
+		ByteBuffer block;
+		if (header.get(0) == BlockCompressor.TAG_RAW) {
+			block = stored.flip();
+		} else if (header.get(0) == BlockCompressor.TAG_DEFLATE) {
+			inflater.reset();
+			inflater.setInput(stored.array(), 0, stored.capacity());
+			int inflated = 0;
+			try {
+				while (inflated < length && !inflater.finished()) {
+					int n = inflater.inflate(output, inflated, length
+							- inflated);
+					if (n == 0 && (inflater.needsInput()
+							|| inflater.needsDictionary())) {
+						break;
+					}
+					inflated += n;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt block: " + e.getMessage());
+			}
+			if (inflated != length || !inflater.finished()) {
+				throw new IOException("Corrupt block");
+			}
+			block = ByteBuffer.wrap(output, 0, length);
+		} else {
+			throw new IOException("Unknown block tag " + header.get(0));
+		}
+		long start = position;
+		while (block.hasRemaining()) {
+			position += channel.write(block, position);
+		}
+		if (verifier != null) {
+			verifier.written(start, length);
+		}
+	}
+}
@@ -0,0 +1,464 @@
+/**
+ *
+ * Signatures of the blocks of a file the receiver already holds, for delta
+ * transfers in the style of rsync. The old version is cut into blocks of a
+ * size that grows with the square root of its length, and every full block
+ * gets a weak rolling checksum and a strong hash, the first STRONG_SIZE
+ * bytes of its SHA-256. The sender rolls the weak checksum over the new
+ * version one byte at a time, and only hashes a window whose weak checksum
+ * matches a block (see DeltaEncoder).
+ *
+ * A receiver started with -delta hashes the old version on the fork-join
+ * pool before the transfer, and answers signature queries: probes that
+ * also have FLAG_PARITY set. A query asks for the signatures from the block
+ * number in bytes 2-5 on, in an answer of at most the size in bytes 6-7.
+ * The answer has FLAG_ACK, FLAG_PROBE and FLAG_PARITY set, echoes the
+ * block number in bytes 2-5, and goes on with (network byte order):
+ *
+ *  6-7		Number of signatures that follow
+ *  8-11	Block size
+ *  12-15	Number of blocks
+ *  16-		Signatures, the weak checksum followed by the strong hash
+ *
+ * A receiver without an old version answers with no blocks, and one that
+ * was not started with -delta does not answer at all, in which case the
+ * sender sends the file as it is.
+ *
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+public class BlockSignatures {
+	public static final int MIN_BLOCK_SIZE = 1 << 10;
+	public static final int MAX_BLOCK_SIZE = 1 << 17;
+	public static final int STRONG_SIZE = 16;
+	public static final int ENTRY_SIZE = 4 + STRONG_SIZE;
+	// Blocks hashed by a single task before the work is split no further
+	private static int BLOCKS_PER_TASK = 64;
+	private static int TABLE_BITS = 16;
+	private static int IN_FLIGHT = 16;
+	private static int TRIES = 3;
+
+	private int block_size;
+	private int[] weak;
+	private byte[] strong;
+	private int[] heads;
+	private int[] next;
+
+	public static class SignatureTask extends HashTask {
+		private static final long serialVersionUID = 1L;
+		private FileChannel channel;
+		private BlockSignatures signatures;
+
+		/**
+		 * Constructor for SignatureTask
+		 *
+		 * @param channel
+		 *            Channel of the old version
+		 * @param signatures
+		 *            Signatures the results are stored in
+		 * @param first
+		 *            Number of the first block to sign
+		 * @param last
+		 *            Number after the last block to sign
+		 */
+		public SignatureTask(FileChannel channel, BlockSignatures signatures,
+				int first, int last) {
+			super(first, last, BLOCKS_PER_TASK);
+			this.channel = channel;
+			this.signatures = signatures;
+		}
+
+		protected HashTask split(int first, int last) {
+			return new SignatureTask(channel, signatures, first, last);
+		}
+
+		protected void computeRange(int first, int last) throws IOException {
+			int size = signatures.block_size;
+			byte[] block = new byte[size];
+			for (int x = first; x < last; x++) {
+				ByteBuffer read = ByteBuffer.wrap(block);
+				while (read.hasRemaining()) {
+					if (channel.read(read, (long) x * size
+							+ read.position()) < 0) {
+						throw new IOException("File shrank while signing");
+					}
+				}
+				signatures.weak[x] = weakChecksum(block, 0, size);
+				strongHash(block, 0, size, signatures.strong, x * STRONG_SIZE);
+			}
+		}
+	}
+
+	/**
+	 * Constructor for BlockSignatures
+	 *
+	 * @param block_size
+	 *            Size of every block
+	 * @param block_count
+	 *            Number of full blocks of the old version
+	 */
+	public BlockSignatures(int block_size, int block_count) {
+		this.block_size = block_size;
+		this.weak = new int[block_count];
+		this.strong = new byte[block_count * STRONG_SIZE];
+	}
+
+	/**
+	 * Signs every full block of a file on the fork-join pool
+	 *
+	 * @param filepath
+	 *            Path of the old version, or null if there is none
+	 * @return The signatures, with no blocks if there is no old version
+	 * @throws IOException
+	 */
+	public static BlockSignatures compute(String filepath) throws IOException {
+		if (filepath == null) {
+			return new BlockSignatures(MIN_BLOCK_SIZE, 0);
+		}
+		try (FileChannel channel = FileChannel.open(Paths.get(filepath),
+				StandardOpenOption.READ)) {
+			long length = channel.size();
+			int size = getBlockSize(length);
+			BlockSignatures signatures = new BlockSignatures(size,
+					(int) (length / size));
+			try {
+				ForkJoinPool.commonPool().invoke(new SignatureTask(channel,
+						signatures, 0, signatures.getBlockCount()));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			return signatures;
+		}
+	}
+
+	/**
+	 * Picks the block size for an old version of the given length, about its
+	 * square root, which balances the size of the signatures against the
+	 * literal data a change costs
+	 *
+	 * @param length
+	 *            Length of the old version
+	 * @return The block size, a power of two
+	 */
+	public static int getBlockSize(long length) {
+		int root = (int) Math.sqrt((double) length);
+		return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE,
+				Integer.highestOneBit(Math.max(1, root))));
+	}
+
+	/**
+	 * Computes the weak checksum of a window from scratch
+	 *
+	 * @param data
+	 *            Array the window lies in
+	 * @param offset
+	 *            Offset of the window in data
+	 * @param length
+	 *            Length of the window
+	 * @return The two 16 bit sums, the second one in the upper half
+	 */
+	public static int weakChecksum(byte[] data, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for (int x = 0; x < length; x++) {
+			int value = data[offset + x] & 0xFF;
+			a += value;
+			b += (length - x) * value;
+		}
+		return (a & 0xFFFF) | (b << 16);
+	}
+
+	/**
+	 * Moves the weak checksum of a window one byte on
+	 *
+	 * @param weak
+	 *            Weak checksum of the window
+	 * @param length
+	 *            Length of the window
+	 * @param out
+	 *            The byte that leaves the window at its start
+	 * @param in
+	 *            The byte that enters the window at its end
+	 * @return Weak checksum of the window one byte on
+	 */
+	public static int roll(int weak, int length, byte out, byte in) {
+		int a = ((weak & 0xFFFF) - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+		int b = (weak >>> 16) - length * (out & 0xFF) + a;
+		return a | (b << 16);
+	}
+
+	// Write the strong hash of a window into dest at the given offset
+	private static void strongHash(byte[] data, int offset, int length,
+			byte[] dest, int dest_offset) {
+		MessageDigest digest = HashTask.getDigest();
+		digest.update(data, offset, length);
+		System.arraycopy(digest.digest(), 0, dest, dest_offset, STRONG_SIZE);
+	}
+
+	/**
+	 * Looks for a block of the old version that is the same as a window of
+	 * the new one
+	 *
+	 * @param weak
+	 *            Weak checksum of the window
+	 * @param data
+	 *            Array the window lies in
+	 * @param offset
+	 *            Offset of the window in data, which is block size long
+	 * @param hint
+	 *            Number of the block preferred among equal ones, usually the
+	 *            one after the last match
+	 * @return The number of the block, or -1 if there is none
+	 */
+	public int find(int weak, byte[] data, int offset, int hint) {
+		if (heads == null) {
+			index();
+		}
+		byte[] hash = null;
+		int found = -1;
+		for (int x = heads[slotOf(weak)] - 1; x >= 0; x = next[x] - 1) {
+			if (this.weak[x] != weak) {
+				continue;
+			}
+			if (hash == null) {
+				hash = new byte[STRONG_SIZE];
+				strongHash(data, offset, block_size, hash, 0);
+			}
+			if (Arrays.equals(strong, x * STRONG_SIZE, (x + 1) * STRONG_SIZE,
+					hash, 0, STRONG_SIZE)) {
+				if (x == hint) {
+					return x;
+				}
+				found = found == -1 ? x : Math.min(found, x);
+			}
+		}
+		return found;
+	}
+
+	// Chain the blocks by a hash of their weak checksum for find()
+	private void index() {
+		heads = new int[1 << TABLE_BITS];
+		next = new int[weak.length];
+		for (int x = weak.length - 1; x >= 0; x--) {
+			int slot = slotOf(weak[x]);
+			next[x] = heads[slot];
+			heads[slot] = x + 1;
+		}
+	}
+
+	// Position of a weak checksum in the hash table
+	private static int slotOf(int weak) {
+		return (weak ^ (weak >>> TABLE_BITS)) & ((1 << TABLE_BITS) - 1);
+	}
+
+	// Get the size of every block
+	public int getBlockSize() {
+		return block_size;
+	}
+
+	// Get the number of full blocks of the old version
+	public int getBlockCount() {
+		return weak.length;
+	}
+
+	/**
+	 * Answers a datagram received by an engine if it is a signature query,
+	 * without connecting the engine to the sender
+	 *
+	 * @param engine
+	 *            The receiver's engine
+	 * @param query
+	 *            The datagram in byte array form
+	 * @param length
+	 *            The length of the datagram
+	 * @param signatures
+	 *            Signatures of the old version, or null if the receiver
+	 *            does not take delta transfers
+	 * @return True if the datagram was a signature query that was answered
+	 * @throws IOException
+	 */
+	public static boolean answer(TransportEngine engine, byte[] query,
+			int length, BlockSignatures signatures) throws IOException {
+		if (signatures == null || !isQuery(query, length)) {
+			return false;
+		}
+		int first = Utilities.getPacketNum(query);
+		int size = Math.max(Utilities.HEADER_SIZE + ENTRY_SIZE, Math.min(
+				Utilities.MAX_PACKET_SIZE, ((query[6] & 0xFF) << 8)
+						| (query[7] & 0xFF)));
+		int count = first < 0 ? 0 : Math.max(0, Math.min((size
+				- Utilities.HEADER_SIZE) / ENTRY_SIZE, signatures
+				.getBlockCount() - first));
+
+		byte[] answer = new byte[Utilities.HEADER_SIZE + count * ENTRY_SIZE];
+		answer[0] = (byte) Utilities.HEADER_VERSION;
+		answer[1] = Utilities.FLAG_ACK | Utilities.FLAG_PROBE
+				| Utilities.FLAG_PARITY;
+		Utilities.putSeq(answer, 2, first);
+		answer[6] = (byte) (count >>> 8);
+		answer[7] = (byte) count;
+		Utilities.putSeq(answer, 8, signatures.block_size);
+		Utilities.putSeq(answer, 12, signatures.getBlockCount());
+		for (int x = 0; x < count; x++) {
+			int offset = Utilities.HEADER_SIZE + x * ENTRY_SIZE;
+			Utilities.putSeq(answer, offset, signatures.weak[first + x]);
+			System.arraycopy(signatures.strong, (first + x) * STRONG_SIZE,
+					answer, offset + 4, STRONG_SIZE);
+		}
+		engine.sendTo(answer, answer.length, engine.getLastSource());
+		return true;
+	}
+
+	/**
+	 * Fetches the signatures of the receiver's old version, keeping a few
+	 * queries in flight at once
+	 *
+	 * @param socket
+	 *            Socket to ask through, no other thread may be receiving on
+	 *            it
+	 * @param ip
+	 *            IP address of the receiver
+	 * @param port
+	 *            Port number of the receiver
+	 * @param timeout
+	 *            Time to wait for answers in milliseconds
+	 * @param packet_size
+	 *            Largest datagram that reaches the receiver
+	 * @return The signatures, or null if the receiver does not take delta
+	 *         transfers
+	 * @throws IOException
+	 */
+	public static BlockSignatures fetch(DatagramSocket socket,
+			InetAddress ip, int port, int timeout, int packet_size)
+			throws IOException {
+		int per_answer = (packet_size - Utilities.HEADER_SIZE) / ENTRY_SIZE;
+		byte[] query = new byte[Utilities.HEADER_SIZE];
+		byte[] answer = new byte[Utilities.MAX_PACKET_SIZE];
+		DatagramPacket sent = new DatagramPacket(query, query.length, ip, port);
+		DatagramPacket received = new DatagramPacket(answer, answer.length);
+		int previous_timeout = socket.getSoTimeout();
+		BlockSignatures signatures = null;
+		boolean[] answered = new boolean[1];
+		int outstanding = 1;
+		int failures = 0;
+
+		try {
+			socket.setSoTimeout(Math.max(1, timeout));
+			while (outstanding > 0 && failures < TRIES) {
+				// Ask again for up to IN_FLIGHT answers still missing
+				int asked = 0;
+				for (int x = 0; x < answered.length && asked < IN_FLIGHT; x++) {
+					if (!answered[x]) {
+						writeQuery(query, x * per_answer, packet_size);
+						socket.send(sent);
+						asked++;
+					}
+				}
+
+				boolean progress = false;
+				try {
+					while (asked > 0) {
+						received.setLength(answer.length);
+						socket.receive(received);
+						int length = received.getLength();
+						if (!isAnswer(answer, length)) {
+							continue;
+						}
+						int first = Utilities.getPacketNum(answer);
+						int count = ((answer[6] & 0xFF) << 8)
+								| (answer[7] & 0xFF);
+						if (signatures == null) {
+							// The first answer tells how many there are
+							signatures = new BlockSignatures(
+									Utilities.getSeq(answer, 8),
+									Math.max(0, Utilities.getSeq(answer, 12)));
+							answered = new boolean[Math.max(1,
+									(signatures.getBlockCount()
+											+ per_answer - 1) / per_answer)];
+							outstanding = answered.length;
+						}
+						int x = first / per_answer;
+						if (first % per_answer != 0 || x >= answered.length
+								|| answered[x] || count != Math.min(
+										per_answer, signatures
+												.getBlockCount() - first)) {
+							continue;
+						}
+						for (int y = 0; y < count; y++) {
+							int offset = Utilities.HEADER_SIZE + y
+									* ENTRY_SIZE;
+							signatures.weak[first + y] = Utilities.getSeq(
+									answer, offset);
+							System.arraycopy(answer, offset + 4,
+									signatures.strong, (first + y)
+											* STRONG_SIZE, STRONG_SIZE);
+						}
+						answered[x] = true;
+						outstanding--;
+						asked--;
+						progress = true;
+					}
+				} catch (SocketTimeoutException e) {
+					// Some were lost, ask for them again
+				}
+				failures = progress ? 0 : failures + 1;
+			}
+		} finally {
+			socket.setSoTimeout(previous_timeout);
+		}
+		if (signatures == null) {
+			return null;
+		}
+		if (outstanding > 0) {
+			throw new IOException("Could not fetch the receiver's signatures");
+		}
+		return signatures;
+	}
+
+	/**
+	 * Checks whether a datagram is a signature query
+	 *
+	 * @param input
+	 *            A datagram in byte array form
+	 * @param length
+	 *            The length of the datagram
+	 * @return True if the datagram is a probe with FLAG_PARITY set
+	 */
+	public static boolean isQuery(byte[] input, int length) {
+		return length >= Utilities.HEADER_SIZE
+				&& Utilities.isValidHeader(input)
+				&& (input[1] & Utilities.FLAG_ACK) == 0
+				&& Utilities.isProbe(input) && Utilities.isParity(input);
+	}
+
+	// Whether a datagram is the answer to a signature query
+	private static boolean isAnswer(byte[] input, int length) {
+		return length >= Utilities.HEADER_SIZE
+				&& Utilities.isValidHeader(input)
+				&& (input[1] & Utilities.FLAG_ACK) != 0
+				&& Utilities.isProbe(input) && Utilities.isParity(input)
+				&& Utilities.getSeq(input, 8) >= MIN_BLOCK_SIZE
+				&& Utilities.getSeq(input, 8) <= MAX_BLOCK_SIZE
+				&& length == Utilities.HEADER_SIZE + ENTRY_SIZE
+						* (((input[6] & 0xFF) << 8) | (input[7] & 0xFF));
+	}
+
+	// Write a query for the signatures from the given block on
+	private static void writeQuery(byte[] query, int first, int packet_size) {
+		Utilities.writeHeader(query, first, packet_size, false);
+		query[1] = Utilities.FLAG_PROBE | Utilities.FLAG_PARITY;
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * 
+ * Recycles fixed-size packet buffers so that receiving a datagram does not
+ * allocate a new array every time. Buffers are handed back once their data
+ * has been written out; the pool keeps at most a given number of spare
+ * buffers and lets the rest be garbage collected.
+ * 
+ */
+
+import java.util.ArrayDeque;
+
+public class BufferPool {
+	private ArrayDeque<byte[]> free;
+	private int buffer_size;
+	private int max_free;
+
+	/**
+	 * Constructor for BufferPool
+	 * 
+	 * @param buffer_size
+	 *            Size of every buffer in the pool
+	 * @param max_free
+	 *            Maximum number of spare buffers kept for reuse
+	 */
+	public BufferPool(int buffer_size, int max_free) {
+		this.free = new ArrayDeque<byte[]>();
+		this.buffer_size = buffer_size;
+		this.max_free = max_free;
+	}
+
+	/**
+	 * Takes a buffer from the pool, allocating one if none are spare
+	 * 
+	 * @return A buffer of buffer_size bytes with undefined content
+	 */
+	public synchronized byte[] take() {
+		byte[] buffer = free.pollFirst();
+		if (buffer == null) {
+			buffer = new byte[buffer_size];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool once it is no longer in use
+	 * 
+	 * @param buffer
+	 *            A buffer previously obtained through take()
+	 */
+	public synchronized void release(byte[] buffer) {
+		if (buffer.length == buffer_size && free.size() < max_free) {
+			free.addFirst(buffer);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ *
+ * Decides how many packets a windowed sender may have in flight. The sender
+ * reports acknowledgments, losses and time outs, and only fills its window
+ * up to getWindow(). The window given on the command line is the ceiling
+ * imposed by the receiver, and no controller goes beyond it.
+ *
+ * Controllers are driven by the sending thread alone and are not
+ * thread-safe.
+ *
+ */
+
+public interface CongestionControl {
+
+	/**
+	 * Called for every batch of newly acknowledged packets
+	 *
+	 * @param acked
+	 *            Number of packets acknowledged since the last call
+	 * @param rtt_nanos
+	 *            The latest round-trip time sample, or -1 if none is known
+	 */
+	public void onAck(int acked, long rtt_nanos);
+
+	// Called when a loss is detected without a time out, e.g. by duplicates
+	public void onLoss();
+
+	// Called once per round of retransmission time outs
+	public void onTimeout();
+
+	// Get the number of packets that may be in flight
+	public int getWindow();
+}
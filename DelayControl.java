@@ -0,0 +1,77 @@
+/**
+ *
+ * Delay-based congestion control in the style of TCP Vegas. The smallest
+ * round-trip time seen is taken as the time of an empty path, and the growth
+ * of the round-trip time above it tells how many of the sender's packets are
+ * queued along the way. The window grows while fewer than ALPHA packets are
+ * queued and shrinks once more than BETA are, so it settles before the
+ * queues overflow instead of relying on losses. Losses and time outs are
+ * handled as in Reno.
+ *
+ */
+
+public class DelayControl implements CongestionControl {
+	private static int INITIAL_WINDOW = 4;
+	private static double ALPHA = 2;
+	private static double BETA = 4;
+
+	private int max_window;
+	private double cwnd;
+	private double ssthresh;
+	private long base_rtt;
+
+	/**
+	 * Constructor for DelayControl
+	 *
+	 * @param max_window
+	 *            The receiver's window, which the window never exceeds
+	 */
+	public DelayControl(int max_window) {
+		this.max_window = Math.max(1, max_window);
+		this.cwnd = Math.min(INITIAL_WINDOW, this.max_window);
+		this.ssthresh = this.max_window;
+		this.base_rtt = Long.MAX_VALUE;
+	}
+
+	public void onAck(int acked, long rtt_nanos) {
+		if (acked <= 0) {
+			return;
+		}
+		if (rtt_nanos <= 0) {
+			// Nothing to judge the queues by yet
+			if (cwnd < ssthresh) {
+				cwnd = Math.min(cwnd + acked, max_window);
+			}
+			return;
+		}
+		base_rtt = Math.min(base_rtt, rtt_nanos);
+
+		// Number of packets queued along the path
+		double queued = cwnd * (rtt_nanos - base_rtt) / rtt_nanos;
+
+		if (queued > BETA) {
+			// Queues are building up, leave slow start and back off
+			ssthresh = Math.min(ssthresh, cwnd);
+			cwnd = Math.max(1, cwnd - (double) acked / cwnd);
+		} else if (cwnd < ssthresh) {
+			cwnd += acked;
+		} else if (queued < ALPHA) {
+			cwnd += (double) acked / cwnd;
+		}
+		cwnd = Math.min(cwnd, max_window);
+	}
+
+	public void onLoss() {
+		ssthresh = Math.max(2, cwnd / 2);
+		cwnd = ssthresh;
+	}
+
+	public void onTimeout() {
+		ssthresh = Math.max(2, cwnd / 2);
+		cwnd = 1;
+	}
+
+	public int getWindow() {
+		return (int) cwnd;
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ *
+ * Decides when a receiver in ack coalescing mode (-delack) sends the
+ * acknowledgment it is holding back. In-order packets are acknowledged once
+ * every ACK_EVERY packets, or once the oldest of them has waited for
+ * MAX_DELAY_NANOS. Gaps, duplicates and the end-of-file are still
+ * acknowledged straight away by the receiver, and that acknowledgment covers
+ * the held back packets as well.
+ *
+ * The acknowledgment echoes the send time of the oldest packet it covers, so
+ * the sender's round-trip time estimate includes the delay and its time outs
+ * stay clear of it.
+ *
+ */
+
+public class DelayedAck {
+	public static final int ACK_EVERY = 4;
+	public static final long MAX_DELAY_NANOS = 2000000L;
+
+	private byte[] echo = new byte[Utilities.HEADER_SIZE];
+	private int every;
+	private long delay;
+	private int pending;
+	private long deadline;
+
+	/**
+	 * Constructor for DelayedAck
+	 *
+	 * @param every
+	 *            Number of in-order packets covered by one acknowledgment
+	 * @param delay_nanos
+	 *            Longest time an acknowledgment is held back
+	 */
+	public DelayedAck(int every, long delay_nanos) {
+		this.every = every;
+		this.delay = delay_nanos;
+		this.pending = 0;
+	}
+
+	/**
+	 * Holds back the acknowledgment for an in-order packet
+	 *
+	 * @param packet
+	 *            The packet in byte array form
+	 * @return True if enough packets are held back that the acknowledgment
+	 *         is due now
+	 */
+	public boolean hold(byte[] packet) {
+		if (pending == 0) {
+			System.arraycopy(packet, 0, echo, 0, Utilities.HEADER_SIZE);
+			deadline = System.nanoTime() + delay;
+		}
+		pending++;
+		return pending >= every;
+	}
+
+	/**
+	 * Called whenever an acknowledgment is sent, which covers every packet
+	 * that was held back
+	 *
+	 * @param packet
+	 *            The packet that triggered the acknowledgment, or null if
+	 *            the delay ran out
+	 * @return The packet whose send time the acknowledgment must echo
+	 */
+	public byte[] release(byte[] packet) {
+		if (pending == 0) {
+			return packet;
+		}
+		pending = 0;
+		return echo;
+	}
+
+	// Whether an acknowledgment is being held back
+	public boolean isPending() {
+		return pending > 0;
+	}
+
+	// Whether the held back acknowledgment has waited long enough
+	public boolean isDue(long now) {
+		return pending > 0 && now - deadline >= 0;
+	}
+
+	// Time in nanoseconds until the acknowledgment is due, -1 if none is held
+	public long nanosUntilDue(long now) {
+		return pending == 0 ? -1 : Math.max(0, deadline - now);
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ *
+ * Receiving side of DeltaEncoder. The instructions are fed in as they are
+ * received, in order and in pieces of any size, and the new version is
+ * rebuilt with positional writes into the output file: literal data as it
+ * arrives, and copies with positional reads from the old version, which is
+ * kept aside as the basis until the transfer is complete.
+ *
+ * A manifest trailer after the last instruction is recognized by its first
+ * byte, which is not an instruction tag, and collected for the FileSink to
+ * check.
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+public class DeltaDecoder {
+	private static int COPY_BUFFER_SIZE = 1 << 20;
+
+	private FileChannel channel;
+	private FileChannel basis;
+	private long position;
+	private ByteBuffer magic;
+	private ByteBuffer header;
+	private long literal;
+	private ByteBuffer copy;
+	private ManifestVerifier verifier;
+	private ByteArrayOutputStream trailer;
+
+	/**
+	 * Constructor for DeltaDecoder
+	 *
+	 * @param channel
+	 *            Channel of the output file
+	 * @param basis
+	 *            The old version to copy from, or null if there is none
+	 * @param verifier
+	 *            Verifier told about every write, or null
+	 * @throws IOException
+	 */
+	public DeltaDecoder(FileChannel channel, File basis,
+			ManifestVerifier verifier) throws IOException {
+		this.channel = channel;
+		this.verifier = verifier;
+		if (basis != null) {
+			this.basis = FileChannel.open(basis.toPath(),
+					StandardOpenOption.READ);
+		}
+		this.magic = ByteBuffer.allocate(4);
+		this.header = ByteBuffer.allocate(DeltaEncoder.COPY_HEADER_SIZE);
+	}
+
+	/**
+	 * Feeds the next piece of the instructions
+	 *
+	 * @param data
+	 *            The piece, from its position to its limit, which is
+	 *            consumed
+	 * @throws IOException
+	 *             If the instructions are not valid, or refer to more than
+	 *             the old version holds
+	 */
+	public void write(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			if (magic.hasRemaining()) {
+				fill(magic, data);
+				if (!magic.hasRemaining()
+						&& magic.getInt(0) != DeltaEncoder.DELTA_MAGIC) {
+					throw new IOException("Transfer is not a delta");
+				}
+				continue;
+			}
+			if (trailer == null && literal == 0 && header.position() == 0
+					&& data.get(data.position()) == Manifest.TRAILER_TAG) {
+				// The instructions are over, the rest is the manifest
+				trailer = new ByteArrayOutputStream();
+			}
+			if (trailer != null) {
+				byte[] rest = new byte[data.remaining()];
+				data.get(rest);
+				trailer.write(rest, 0, rest.length);
+				return;
+			}
+			if (literal > 0) {
+				int length = (int) Math.min(literal, data.remaining());
+				ByteBuffer part = data.slice(data.position(), length);
+				data.position(data.position() + length);
+				writeOut(part);
+				literal -= length;
+				continue;
+			}
+
+			if (header.position() == 0) {
+				byte tag = data.get(data.position());
+				if (tag == DeltaEncoder.TAG_LITERAL) {
+					header.limit(DeltaEncoder.LITERAL_HEADER_SIZE);
+				} else if (tag == DeltaEncoder.TAG_COPY) {
+					header.limit(DeltaEncoder.COPY_HEADER_SIZE);
+				} else {
+					throw new IOException("Unknown delta tag " + tag);
+				}
+			}
+			fill(header, data);
+			if (header.hasRemaining()) {
+				return;
+			}
+			if (header.get(0) == DeltaEncoder.TAG_LITERAL) {
+				literal = header.getInt(1) & 0xFFFFFFFFL;
+			} else {
+				copy(header.getLong(1), header.getInt(9) & 0xFFFFFFFFL);
+			}
+			header.clear();
+		}
+	}
+
+	/**
+	 * Checks that the instructions ended on an instruction boundary, and
+	 * lets go of the old version
+	 *
+	 * @return The length of the new version
+	 * @throws IOException
+	 *             If an instruction was cut off
+	 */
+	public long finish() throws IOException {
+		if (basis != null) {
+			basis.close();
+		}
+		if (magic.hasRemaining() || literal > 0 || header.position() > 0) {
+			throw new IOException("Delta ends within an instruction");
+		}
+		return position;
+	}
+
+	// Get the manifest trailer that followed the instructions, or null
+	public byte[] getTrailer() {
+		return trailer == null ? null : trailer.toByteArray();
+	}
+
+	// Copy as much of data as fits into dest
+	private static void fill(ByteBuffer dest, ByteBuffer data) {
+		int length = Math.min(dest.remaining(), data.remaining());
+		dest.put(dest.position(), data, data.position(), length);
+		dest.position(dest.position() + length);
+		data.position(data.position() + length);
+	}
+
+	/**
+	 * Copies a range of the old version to the end of the new one
+	 *
+	 * @param offset
+	 *            Offset of the range in the old version
+	 * @param length
+	 *            Length of the range
+	 * @throws IOException
+	 */
+	private void copy(long offset, long length) throws IOException {
+		if (basis == null || offset < 0 || offset + length > basis.size()) {
+			throw new IOException("Delta refers past the end of the old version");
+		}
+		if (copy == null) {
+			copy = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+		}
+		while (length > 0) {
+			copy.clear();
+			copy.limit((int) Math.min(copy.capacity(), length));
+			while (copy.hasRemaining()) {
+				if (basis.read(copy, offset + copy.position()) < 0) {
+					throw new IOException("Old version shrank while copying");
+				}
+			}
+			copy.flip();
+			offset += copy.remaining();
+			length -= copy.remaining();
+			writeOut(copy);
+		}
+	}
+
+	// Write data at the end of the new version
+	private void writeOut(ByteBuffer data) throws IOException {
+		long start = position;
+		while (data.hasRemaining()) {
+			position += channel.write(data, position);
+		}
+		if (verifier != null) {
+			verifier.written(start, (int) (position - start));
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ *
+ * Sending side of a delta transfer. The new version of the file is turned
+ * into a stream of instructions for rebuilding it from the old version the
+ * receiver holds, written to a temporary file that is then sent instead of
+ * the file, just like the blocks of BlockCompressor. The receiving FileSink
+ * follows the instructions with a DeltaDecoder.
+ *
+ * The stream starts with DELTA_MAGIC, followed by instructions that each
+ * start with a tag (network byte order):
+ *
+ *  TAG_LITERAL	1-4		Length of the data that follows
+ *  TAG_COPY	1-8		Offset in the old version
+ *  			9-12	Length to copy from there
+ *
+ * The weak checksum of a window of the block size is rolled over the new
+ * version one byte at a time. Where it matches a block of the old version
+ * and the strong hash agrees as well, the block is copied and the window
+ * jumps past it; bytes that match no block are sent as literal data. Runs
+ * of consecutive blocks are copied with a single instruction.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class DeltaEncoder {
+	public static final int DELTA_MAGIC = 0x444C5441;
+	public static final byte TAG_LITERAL = 0;
+	public static final byte TAG_COPY = 1;
+	public static final int LITERAL_HEADER_SIZE = 5;
+	public static final int COPY_HEADER_SIZE = 13;
+	// Enough of the new version in memory for a window of any block size
+	private static int BUFFER_SIZE = 1 << 22;
+	private static int MAX_COPY = 1 << 30;
+
+	private FileChannel in;
+	private FileChannel out;
+	private BlockSignatures signatures;
+	private int block_size;
+	private byte[] buffer;
+	private long buffer_start;
+	private int buffer_length;
+	private long literal_start;
+	private long copy_offset;
+	private long copy_length;
+	private ByteBuffer header;
+
+	/**
+	 * Constructor for DeltaEncoder
+	 *
+	 * @param in
+	 *            Channel of the new version
+	 * @param out
+	 *            Channel the instructions are written to
+	 * @param signatures
+	 *            Signatures of the receiver's old version
+	 */
+	public DeltaEncoder(FileChannel in, FileChannel out,
+			BlockSignatures signatures) {
+		this.in = in;
+		this.out = out;
+		this.signatures = signatures;
+		this.block_size = signatures.getBlockSize();
+		this.buffer = new byte[BUFFER_SIZE];
+		this.header = ByteBuffer.allocate(COPY_HEADER_SIZE);
+	}
+
+	/**
+	 * Encodes a file against the signatures of the receiver's old version
+	 * into a temporary file of instructions, which is deleted when the
+	 * program exits
+	 *
+	 * @param filepath
+	 *            Path of the new version
+	 * @param signatures
+	 *            Signatures of the receiver's old version
+	 * @return Path of the file of instructions
+	 * @throws IOException
+	 */
+	public static String encode(String filepath, BlockSignatures signatures)
+			throws IOException {
+		File delta = File.createTempFile("transfer", ".delta");
+		delta.deleteOnExit();
+		try (FileChannel in = FileChannel.open(Paths.get(filepath),
+				StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(delta.toPath(),
+						StandardOpenOption.WRITE)) {
+			new DeltaEncoder(in, out, signatures).encode();
+		}
+		return delta.getPath();
+	}
+
+	/**
+	 * Writes the instructions for the whole new version
+	 *
+	 * @throws IOException
+	 */
+	public void encode() throws IOException {
+		long size = in.size();
+		header.clear();
+		header.putInt(DELTA_MAGIC).flip();
+		write(header);
+
+		long position = 0;
+		int weak = 0;
+		boolean fresh = true;
+		int hint = -1;
+		while (signatures.getBlockCount() > 0 && position + block_size <= size) {
+			// The window and the byte after it have to be in the buffer
+			long needed = Math.min(size, position + block_size + 1);
+			if (needed > buffer_start + buffer_length) {
+				fill(position);
+			}
+			int at = (int) (position - buffer_start);
+			if (fresh) {
+				weak = BlockSignatures.weakChecksum(buffer, at, block_size);
+				fresh = false;
+			}
+
+			int block = signatures.find(weak, buffer, at, hint);
+			if (block >= 0) {
+				flushLiteral(position);
+				addCopy((long) block * block_size);
+				position += block_size;
+				literal_start = position;
+				fresh = true;
+				hint = block + 1;
+			} else {
+				if (position + block_size < size) {
+					weak = BlockSignatures.roll(weak, block_size, buffer[at],
+							buffer[at + block_size]);
+				}
+				position++;
+			}
+		}
+
+		// Whatever is left matches no block
+		while (literal_start < size) {
+			if (size > buffer_start + buffer_length) {
+				fill(Math.max(position, literal_start));
+			}
+			flushLiteral(Math.min(size, buffer_start + buffer_length));
+		}
+		flushCopy();
+	}
+
+	/**
+	 * Refills the buffer from the given offset of the new version on, after
+	 * sending the literal data that is about to leave it
+	 *
+	 * @param offset
+	 *            Offset in the new version of the first byte to keep
+	 * @throws IOException
+	 */
+	private void fill(long offset) throws IOException {
+		flushLiteral(offset);
+		ByteBuffer read = ByteBuffer.wrap(buffer);
+		while (read.hasRemaining()) {
+			if (in.read(read, offset + read.position()) < 0) {
+				break;
+			}
+		}
+		buffer_start = offset;
+		buffer_length = read.position();
+	}
+
+	/**
+	 * Sends the bytes from the end of the last instruction up to the given
+	 * offset as literal data
+	 *
+	 * @param end
+	 *            Offset in the new version after the last literal byte
+	 * @throws IOException
+	 */
+	private void flushLiteral(long end) throws IOException {
+		if (end <= literal_start) {
+			return;
+		}
+		flushCopy();
+		int length = (int) (end - literal_start);
+		header.clear();
+		header.put(TAG_LITERAL).putInt(length).flip();
+		write(header);
+		write(ByteBuffer.wrap(buffer, (int) (literal_start - buffer_start),
+				length));
+		literal_start = end;
+	}
+
+	// Copy a block from the given offset of the old version, together with
+	// the blocks before it if they are consecutive
+	private void addCopy(long offset) throws IOException {
+		if (copy_length > 0 && (offset != copy_offset + copy_length
+				|| copy_length + block_size > MAX_COPY)) {
+			flushCopy();
+		}
+		if (copy_length == 0) {
+			copy_offset = offset;
+		}
+		copy_length += block_size;
+	}
+
+	// Write the pending copy instruction
+	private void flushCopy() throws IOException {
+		if (copy_length == 0) {
+			return;
+		}
+		header.clear();
+		header.put(TAG_COPY).putLong(copy_offset).putInt((int) copy_length)
+				.flip();
+		write(header);
+		copy_length = 0;
+	}
+
+	// Append data to the file of instructions
+	private void write(ByteBuffer data) throws IOException {
+		while (data.hasRemaining()) {
+			out.write(data);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ *
+ * Receiving side of the forward error correction in FecEncoder. The decoder
+ * keeps a copy of the most recent data packets in a ring, and every parity
+ * packet until its block is either complete or too old. As soon as exactly
+ * one packet of a block is missing it is rebuilt from the parity and the
+ * rest of the block.
+ *
+ * A rebuilt packet carries the retransmission flag and a zero timestamp, so
+ * the acknowledgment it triggers is never used as a round-trip time sample.
+ * It keeps the compressed and manifest flags of the rest of its block.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+public class FecDecoder {
+	private byte[][] ring;
+	private int[] numbers;
+	private boolean[] valid;
+	private int mask;
+	private int newest;
+	private boolean seen;
+	private ArrayList<byte[]> parities;
+
+	/**
+	 * Constructor for FecDecoder
+	 *
+	 * @param capacity
+	 *            Number of recent data packets kept, rounded up to a power
+	 *            of two
+	 */
+	public FecDecoder(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.ring = new byte[size][];
+		this.numbers = new int[size];
+		this.valid = new boolean[size];
+		this.mask = size - 1;
+		this.seen = false;
+		this.parities = new ArrayList<byte[]>();
+	}
+
+	/**
+	 * Adds a received data packet
+	 *
+	 * @param packet
+	 *            The packet in byte array form, it is copied
+	 * @param length
+	 *            The length of the received datagram
+	 * @return A packet that could be rebuilt thanks to this one, or null
+	 */
+	public byte[] addData(byte[] packet, int length) {
+		if (length < Utilities.HEADER_SIZE
+				|| !Utilities.isValidHeader(packet)
+				|| length < Utilities.HEADER_SIZE
+						+ Utilities.getDataLength(packet)) {
+			return null;
+		}
+		int number = Utilities.getPacketNum(packet);
+		store(number, packet);
+
+		for (Iterator<byte[]> it = parities.iterator(); it.hasNext();) {
+			byte[] parity = it.next();
+			int start = Utilities.getPacketNum(parity);
+			if (Utilities.seqLessThan(number, start)
+					|| !Utilities.seqLessThan(number, start + getBlock(parity))) {
+				continue;
+			}
+			byte[] rebuilt = rebuild(parity);
+			if (rebuilt != null || countMissing(parity) == 0) {
+				it.remove();
+			}
+			return rebuilt;
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a received parity packet
+	 *
+	 * @param parity
+	 *            The parity packet in byte array form, it is copied
+	 * @param length
+	 *            The length of the received datagram
+	 * @return A packet that could be rebuilt right away, or null
+	 */
+	public byte[] addParity(byte[] parity, int length) {
+		if (length < Utilities.HEADER_SIZE
+				|| !Utilities.isValidHeader(parity)
+				|| length < Utilities.HEADER_SIZE
+						+ Utilities.getDataLength(parity)) {
+			return null;
+		}
+		int missing = countMissing(parity);
+		if (missing == 1) {
+			return rebuild(parity);
+		} else if (missing > 1) {
+			byte[] copy = new byte[length];
+			System.arraycopy(parity, 0, copy, 0, length);
+			parities.add(copy);
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieves a data packet from the ring, whether it was received or
+	 * rebuilt
+	 *
+	 * @param number
+	 *            The packet number
+	 * @return A copy of the packet, or null if it is not held
+	 */
+	public byte[] get(int number) {
+		int slot = number & mask;
+		if (!valid[slot] || numbers[slot] != number) {
+			return null;
+		}
+		byte[] packet = new byte[Utilities.HEADER_SIZE
+				+ Utilities.getDataLength(ring[slot])];
+		System.arraycopy(ring[slot], 0, packet, 0, packet.length);
+		return packet;
+	}
+
+	// Copy a data packet into its slot and drop parities that are too old
+	private void store(int number, byte[] packet) {
+		int length = Utilities.HEADER_SIZE + Utilities.getDataLength(packet);
+		int slot = number & mask;
+		if (ring[slot] == null || ring[slot].length < length) {
+			ring[slot] = new byte[length];
+		}
+		System.arraycopy(packet, 0, ring[slot], 0, length);
+		numbers[slot] = number;
+		valid[slot] = true;
+
+		if (!seen || Utilities.seqLessThan(newest, number)) {
+			newest = number;
+			seen = true;
+			int oldest = newest - mask;
+			for (Iterator<byte[]> it = parities.iterator(); it.hasNext();) {
+				byte[] parity = it.next();
+				if (Utilities.seqLessThan(Utilities.getPacketNum(parity),
+						oldest)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	// Whether a data packet is held in the ring
+	private boolean isHeld(int number) {
+		int slot = number & mask;
+		return valid[slot] && numbers[slot] == number;
+	}
+
+	// Number of data packets in a parity packet's block
+	private static int getBlock(byte[] parity) {
+		return parity[8] & 0xFF;
+	}
+
+	// Count the packets of a parity packet's block that are not held
+	private int countMissing(byte[] parity) {
+		int start = Utilities.getPacketNum(parity);
+		int missing = 0;
+		for (int x = 0; x < getBlock(parity); x++) {
+			if (!isHeld(start + x)) {
+				missing++;
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Rebuilds the one packet missing from a parity packet's block
+	 *
+	 * @param parity
+	 *            The parity packet in byte array form
+	 * @return A copy of the rebuilt packet, or null if not exactly one
+	 *         packet is missing
+	 */
+	private byte[] rebuild(byte[] parity) {
+		if (countMissing(parity) != 1) {
+			return null;
+		}
+		int start = Utilities.getPacketNum(parity);
+		int max_length = Utilities.getDataLength(parity);
+		byte[] data = new byte[max_length];
+		System.arraycopy(parity, Utilities.HEADER_SIZE, data, 0, max_length);
+		int length = Utilities.bytesToInt(parity[10], parity[11]);
+		int flags = parity[9];
+		int kept = 0;
+		int missing = start;
+
+		for (int x = 0; x < getBlock(parity); x++) {
+			int number = start + x;
+			if (!isHeld(number)) {
+				missing = number;
+				continue;
+			}
+			byte[] packet = ring[number & mask];
+			int packet_length = Utilities.getDataLength(packet);
+			for (int y = 0; y < packet_length && y < max_length; y++) {
+				data[y] ^= packet[Utilities.HEADER_SIZE + y];
+			}
+			length ^= packet_length;
+			flags ^= packet[1] & Utilities.FLAG_EOF;
+			kept |= packet[1]
+					& (Utilities.FLAG_COMPRESSED | Utilities.FLAG_MANIFEST);
+		}
+		if (length > max_length) {
+			// The block does not add up, e.g. a packet was corrupted
+			return null;
+		}
+
+		byte[] header = Utilities.createHeader(missing, length,
+				(flags & Utilities.FLAG_EOF) != 0);
+		header[1] |= Utilities.FLAG_RETRANS | kept;
+		byte[] packet = new byte[Utilities.HEADER_SIZE + length];
+		System.arraycopy(header, 0, packet, 0, Utilities.HEADER_SIZE);
+		System.arraycopy(data, 0, packet, Utilities.HEADER_SIZE, length);
+		store(missing, packet);
+		return get(missing);
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ *
+ * Forward error correction for the windowed senders. The first transmission
+ * of every data packet is folded into the current block, and once the block
+ * is complete a parity packet holding the XOR of the block is sent after it.
+ * A receiver that misses a single packet of the block can then rebuild it
+ * locally instead of waiting for a retransmission (see FecDecoder).
+ *
+ * The block size adapts to the loss rate, estimated from the share of
+ * transmissions that are retransmissions: the more loss, the smaller the
+ * blocks and the more parity is sent.
+ *
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class FecEncoder {
+	public static final int MIN_BLOCK = 4;
+	public static final int MAX_BLOCK = 32;
+	private static double LOSS_GAIN = 1.0 / 64;
+
+	private byte[] parity;
+	private int start;
+	private int count;
+	private int block;
+	private int max_length;
+	private int length_xor;
+	private int flags_xor;
+	private double loss_rate;
+
+	/**
+	 * Constructor for FecEncoder
+	 *
+	 * @param data_size
+	 *            Amount of file data carried by every full packet
+	 */
+	public FecEncoder(int data_size) {
+		this.parity = new byte[Utilities.HEADER_SIZE + data_size];
+		this.count = 0;
+		this.loss_rate = 0;
+	}
+
+	/**
+	 * Adds the first transmission of a data packet to the current block.
+	 * Packets have to be added in order of their numbers.
+	 *
+	 * @param number
+	 *            The packet number
+	 * @param data
+	 *            The packet's file data, from its position to its limit
+	 * @param eof
+	 *            Whether or not the packet is the end-of-file
+	 * @return The length of the parity packet if the block is now complete,
+	 *         in which case it can be found in getParity(), otherwise 0
+	 */
+	public int add(int number, ByteBuffer data, boolean eof) {
+		if (count > 0 && number != start + count) {
+			// Out of order, start over rather than send a useless parity
+			count = 0;
+		}
+		if (count == 0) {
+			start = number;
+			block = getBlockSize();
+			max_length = 0;
+			length_xor = 0;
+			flags_xor = 0;
+			Arrays.fill(parity, (byte) 0);
+		}
+
+		int length = data.remaining();
+		int position = data.position();
+		for (int x = 0; x < length; x++) {
+			parity[Utilities.HEADER_SIZE + x] ^= data.get(position + x);
+		}
+		max_length = Math.max(max_length, length);
+		length_xor ^= length;
+		if (eof == true) {
+			flags_xor ^= Utilities.FLAG_EOF;
+		}
+		count++;
+
+		if (count < block && eof == false) {
+			return 0;
+		}
+		Utilities.writeParityHeader(parity, start, count, max_length,
+				length_xor, flags_xor);
+		Utilities.writeChecksum(parity);
+		count = 0;
+		return Utilities.HEADER_SIZE + max_length;
+	}
+
+	// Get the last parity packet completed by add()
+	public byte[] getParity() {
+		return parity;
+	}
+
+	/**
+	 * Feeds a transmission into the loss estimate
+	 *
+	 * @param retransmission
+	 *            Whether the packet had been sent before
+	 */
+	public void recordSend(boolean retransmission) {
+		loss_rate += ((retransmission ? 1 : 0) - loss_rate) * LOSS_GAIN;
+	}
+
+	// Get the number of data packets per parity packet for the current loss
+	public int getBlockSize() {
+		if (loss_rate <= 0) {
+			return MAX_BLOCK;
+		}
+		return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK,
+				0.5 / loss_rate));
+	}
+}
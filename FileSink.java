@@ -0,0 +1,363 @@
+/**
+ * 
+ * Streams received file data to disk as it arrives instead of collecting the
+ * whole transfer in memory first. Heap use is therefore bounded by whatever
+ * the receiver keeps in its window, and the output file is complete as soon
+ * as the end-of-file packet has been appended.
+ * 
+ * Packets flagged FLAG_COMPRESSED carry a stream of tagged blocks from
+ * BlockCompressor instead of the file itself. Blocks appended in order are
+ * inflated on the fly; blocks written at offsets are collected in a spool
+ * file next to the output and inflated when the sink is closed.
+ * 
+ * Packets flagged FLAG_MANIFEST belong to a transfer that ends in a
+ * Manifest trailer. The file is then hashed as it is written, and checked
+ * against the trailer when the sink is closed.
+ * 
+ * A sink that resumes an interrupted transfer keeps the file and the spool
+ * as they were left, see ReceiveJournal.
+ * 
+ * A sink for a delta transfer receives the instructions of a DeltaEncoder
+ * instead of the file, and treats them like compressed blocks: followed on
+ * the fly with a DeltaDecoder when appended, spooled when written at
+ * offsets. The old version is deleted once the new one is complete.
+ * 
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+public class FileSink {
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long position;
+	private String filename;
+	private BlockInflater inflater;
+	private File spool_file;
+	private FileChannel spool;
+	private ManifestVerifier verifier;
+	private boolean resume;
+	private boolean delta = false;
+	private File basis;
+	private DeltaDecoder decoder;
+
+	/**
+	 * Constructor for FileSink. Any existing file with the same name is
+	 * truncated.
+	 * 
+	 * @param filename
+	 *            Path of the file to write to
+	 * @throws IOException
+	 */
+	public FileSink(String filename) throws IOException {
+		this(filename, false);
+	}
+
+	/**
+	 * Constructor for FileSink
+	 * 
+	 * @param filename
+	 *            Path of the file to write to
+	 * @param resume
+	 *            Whether to keep what an interrupted transfer has already
+	 *            written at offsets, rather than truncating the file
+	 * @throws IOException
+	 */
+	public FileSink(String filename, boolean resume) throws IOException {
+		this.file = new RandomAccessFile(filename, "rw");
+		if (!resume) {
+			this.file.setLength(0);
+		}
+		this.channel = file.getChannel();
+		this.position = 0;
+		this.filename = filename;
+		this.resume = resume;
+	}
+
+	/**
+	 * Appends the file data of a packet to the end of the file
+	 * 
+	 * @param packet
+	 *            A packet in byte array form, header included
+	 * @throws IOException
+	 */
+	public void append(byte[] packet) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(packet, Utilities.HEADER_SIZE,
+				Utilities.getDataLength(packet));
+		if (Utilities.hasManifest(packet)) {
+			getVerifier();
+		}
+		if (delta) {
+			getDecoder().write(data);
+			return;
+		}
+		if (Utilities.isCompressed(packet)) {
+			getInflater().write(data);
+			return;
+		}
+		long start = position;
+		while (data.hasRemaining()) {
+			position += channel.write(data, position);
+		}
+		if (verifier != null) {
+			verifier.written(start, (int) (position - start));
+		}
+	}
+
+	/**
+	 * Appends the file data of the packet a codec is bound to, without
+	 * copying or wrapping it first
+	 * 
+	 * @param packet
+	 *            Codec bound to a packet, header included
+	 * @throws IOException
+	 */
+	public void append(PacketCodec packet) throws IOException {
+		ByteBuffer data = packet.buffer();
+		data.limit(Utilities.HEADER_SIZE + packet.getDataLength());
+		data.position(Utilities.HEADER_SIZE);
+		if (packet.hasManifest()) {
+			getVerifier();
+		}
+		if (delta) {
+			getDecoder().write(data);
+			data.clear();
+			return;
+		}
+		if (packet.isCompressed()) {
+			getInflater().write(data);
+			data.clear();
+			return;
+		}
+		long start = position;
+		while (data.hasRemaining()) {
+			position += channel.write(data, position);
+		}
+		if (verifier != null) {
+			verifier.written(start, (int) (position - start));
+		}
+		data.clear();
+	}
+
+	/**
+	 * Writes the file data of a packet at the given offset, regardless of
+	 * what has been written before it. Gaps are filled in by later writes.
+	 * 
+	 * @param packet
+	 *            A packet in byte array form, header included
+	 * @param offset
+	 *            Offset in the file, or in the stream of blocks, of the
+	 *            packet's first data byte
+	 * @throws IOException
+	 */
+	public void writeAt(byte[] packet, long offset) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(packet, Utilities.HEADER_SIZE,
+				Utilities.getDataLength(packet));
+		if (Utilities.hasManifest(packet)) {
+			getVerifier();
+		}
+		if (delta || Utilities.isCompressed(packet)) {
+			FileChannel spool = getSpool();
+			while (data.hasRemaining()) {
+				offset += spool.write(data, offset);
+			}
+			return;
+		}
+		long start = offset;
+		while (data.hasRemaining()) {
+			offset += channel.write(data, offset);
+		}
+		if (verifier != null) {
+			verifier.written(start, (int) (offset - start));
+		}
+	}
+
+	/**
+	 * Makes the sink rebuild the file from the instructions of a delta
+	 * transfer. Must be called before anything is written.
+	 * 
+	 * @param basis
+	 *            The old version the instructions copy from, or null if
+	 *            there is none
+	 */
+	public void setDelta(File basis) {
+		this.delta = true;
+		this.basis = basis;
+	}
+
+	// Get the number of bytes appended so far
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Forces everything written so far to disk, so that a journal of the
+	 * written packets can be forced after it
+	 * 
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
+		channel.force(false);
+		FileChannel spool;
+		synchronized (this) {
+			spool = this.spool;
+		}
+		if (spool != null) {
+			spool.force(false);
+		}
+	}
+
+	/**
+	 * Releases the file once the transfer is complete, after inflating any
+	 * compressed data that is still outstanding and checking the file
+	 * against its manifest
+	 * 
+	 * @throws IOException
+	 *             If the compressed data was not a valid stream of blocks,
+	 *             or the file does not match its manifest
+	 */
+	public void close() throws IOException {
+		try {
+			if (spool != null) {
+				ByteBuffer blocks = ByteBuffer.allocate(1 << 16);
+				long offset = 0;
+				while (spool.read(blocks, offset) > 0) {
+					offset += blocks.flip().remaining();
+					if (delta) {
+						getDecoder().write(blocks);
+					} else {
+						getInflater().write(blocks);
+					}
+					blocks.clear();
+				}
+			}
+			if (decoder != null) {
+				position = decoder.finish();
+				file.setLength(position);
+			} else if (inflater != null) {
+				position = inflater.finish();
+				file.setLength(position);
+			}
+			if (verifier != null) {
+				verify();
+			}
+			if (basis != null) {
+				basis.delete();
+			}
+		} finally {
+			if (spool != null) {
+				spool.close();
+				spool_file.delete();
+			}
+			channel.close();
+			file.close();
+		}
+	}
+
+	/**
+	 * Strips the manifest trailer off the file and checks the file against
+	 * it
+	 * 
+	 * @throws IOException
+	 *             Naming the damaged ranges if the file does not match
+	 */
+	private void verify() throws IOException {
+		byte[] trailer;
+		if (decoder != null) {
+			trailer = decoder.getTrailer();
+		} else if (inflater != null) {
+			trailer = inflater.getTrailer();
+		} else {
+			// The trailer was written to the end of the file
+			trailer = readTrailer();
+			file.setLength(channel.size() - trailer.length);
+		}
+		Manifest expected = Manifest.fromTrailer(trailer);
+		position = channel.size();
+		if (position != expected.getFileLength()) {
+			throw new IOException("File is " + position
+					+ " bytes long, its manifest says "
+					+ expected.getFileLength());
+		}
+
+		List<long[]> damaged = verifier.verify(expected);
+		if (!damaged.isEmpty()) {
+			StringBuilder ranges = new StringBuilder();
+			for (long[] range : damaged) {
+				ranges.append(ranges.length() > 0 ? ", " : "").append(
+						range[0]).append("-").append(range[0] + range[1] - 1);
+			}
+			throw new IOException("File does not match its manifest in bytes "
+					+ ranges);
+		}
+	}
+
+	// Read the manifest trailer from the end of the file
+	private byte[] readTrailer() throws IOException {
+		long size = channel.size();
+		if (size < Manifest.FOOTER_SIZE) {
+			throw new IOException("Transfer does not end in a manifest");
+		}
+		byte[] footer = new byte[Manifest.FOOTER_SIZE];
+		readFully(footer, size - footer.length);
+		int length = Manifest.readTrailerLength(footer);
+		if (length > size) {
+			throw new IOException("Transfer does not end in a manifest");
+		}
+		byte[] trailer = new byte[length];
+		readFully(trailer, size - length);
+		return trailer;
+	}
+
+	// Read an array's worth of the file from the given offset
+	private void readFully(byte[] dest, long offset) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(dest);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+	}
+
+	// Inflate compressed data into the file, starting where appending stopped
+	private BlockInflater getInflater() {
+		if (inflater == null) {
+			inflater = new BlockInflater(channel, position, verifier);
+		}
+		return inflater;
+	}
+
+	// Rebuild the file from delta instructions, starting at its beginning
+	private DeltaDecoder getDecoder() throws IOException {
+		if (decoder == null) {
+			decoder = new DeltaDecoder(channel, basis, verifier);
+		}
+		return decoder;
+	}
+
+	// Hash the file as it is written, for a transfer with a manifest
+	private synchronized ManifestVerifier getVerifier() {
+		if (verifier == null) {
+			verifier = new ManifestVerifier(channel);
+		}
+		return verifier;
+	}
+
+	// Open the spool file for compressed data written at offsets
+	private synchronized FileChannel getSpool() throws IOException {
+		if (spool == null) {
+			spool_file = new File(filename + ".blocks");
+			RandomAccessFile spool_raf = new RandomAccessFile(spool_file,
+					"rw");
+			if (!resume) {
+				spool_raf.setLength(0);
+			}
+			spool = spool_raf.getChannel();
+		}
+		return spool;
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ *
+ * Send window of a Go-Back-N sender. Packets are sent in order and
+ * acknowledged cumulatively, so the window is an ordered run of packet
+ * numbers that is fully described by three pointers:
+ *
+ *  base		First packet that has not been acknowledged
+ *  send_next	Next packet to transmit
+ *  next_seq	First packet that has never been sent
+ *
+ * Packets in [base, send_next) are in flight. Normally send_next equals
+ * next_seq; going back after a loss moves it to base, so exactly the range
+ * [base, next_seq) is sent again and nothing else. The packet data stays in
+ * the file mapping, so the window needs no storage per packet.
+ *
+ * A single retransmission timer covers the oldest packet in flight. Time is
+ * taken from System.nanoTime(). The window is driven by the sending thread
+ * alone and is not thread-safe.
+ *
+ */
+
+public class GoBackNWindow {
+	private int base;
+	private int send_next;
+	private int next_seq;
+	private long deadline;
+	private boolean timer_running;
+
+	/**
+	 * Constructor for GoBackNWindow
+	 *
+	 * @param base
+	 *            Number of the first packet to send
+	 */
+	public GoBackNWindow(int base) {
+		this.base = base;
+		this.send_next = base;
+		this.next_seq = base;
+		this.timer_running = false;
+	}
+
+	// Get the number of the first packet that has not been acknowledged
+	public int getBase() {
+		return base;
+	}
+
+	// Get the number of the next packet to transmit
+	public int getSendNext() {
+		return send_next;
+	}
+
+	// Get the number of the first packet that has never been sent
+	public int getNextSeq() {
+		return next_seq;
+	}
+
+	// Get the number of packets in flight
+	public int getInFlight() {
+		return send_next - base;
+	}
+
+	// Whether the next packet to transmit has been sent before
+	public boolean isRetransmitting() {
+		return Utilities.seqLessThan(send_next, next_seq);
+	}
+
+	/**
+	 * Slides the window over a cumulative acknowledgment
+	 *
+	 * @param cumulative
+	 *            Number of the first packet the receiver has not got
+	 * @return The number of packets that were newly acknowledged
+	 */
+	public int ackTo(int cumulative) {
+		if (!Utilities.seqLessThan(base, cumulative)) {
+			return 0;
+		}
+		if (Utilities.seqLessThan(next_seq, cumulative)) {
+			// Never acknowledge packets that have not been sent
+			cumulative = next_seq;
+		}
+		int acked = cumulative - base;
+		base = cumulative;
+		if (Utilities.seqLessThan(send_next, base)) {
+			// The acknowledgment overtook the packets being sent again
+			send_next = base;
+		}
+		return acked;
+	}
+
+	// Record that the packet numbered getSendNext() has been sent
+	public void markSent() {
+		send_next++;
+		if (Utilities.seqLessThan(next_seq, send_next)) {
+			next_seq = send_next;
+		}
+	}
+
+	// Go back to the base, so that every unacknowledged packet is sent again
+	public void goBack() {
+		send_next = base;
+		timer_running = false;
+	}
+
+	/**
+	 * (Re)starts the retransmission timer for the oldest packet in flight
+	 *
+	 * @param timeout_nanos
+	 *            Time until the timer expires in nanoseconds
+	 */
+	public void startTimer(long timeout_nanos) {
+		deadline = System.nanoTime() + timeout_nanos;
+		timer_running = true;
+	}
+
+	// Stop the retransmission timer, e.g. once nothing is in flight
+	public void stopTimer() {
+		timer_running = false;
+	}
+
+	// Whether the retransmission timer is running
+	public boolean isTimerRunning() {
+		return timer_running;
+	}
+
+	// Whether the retransmission timer has expired by the given time
+	public boolean isTimerExpired(long now) {
+		return timer_running && now - deadline >= 0;
+	}
+
+	// Time in nanoseconds until the timer expires, -1 if it is not running
+	public long nanosUntilTimeout(long now) {
+		return timer_running ? Math.max(0, deadline - now) : -1;
+	}
+}
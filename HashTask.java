@@ -0,0 +1,92 @@
+/**
+ *
+ * Skeleton of the fork-join tasks that hash a file in ranges of leaves or
+ * blocks on the common pool (see Manifest and BlockSignatures). A task
+ * splits its range in half until no more than a given number of items is
+ * left, and hashes those itself; an IOException is carried out of the pool
+ * as an UncheckedIOException. Each worker of the pool keeps its own SHA-256
+ * digest.
+ *
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.RecursiveAction;
+
+public abstract class HashTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	private static ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private int first;
+	private int last;
+	private int per_task;
+
+	/**
+	 * Constructor for HashTask
+	 *
+	 * @param first
+	 *            Number of the first item to hash
+	 * @param last
+	 *            Number after the last item to hash
+	 * @param per_task
+	 *            Items hashed by a single task before the work is split no
+	 *            further
+	 */
+	public HashTask(int first, int last, int per_task) {
+		this.first = first;
+		this.last = last;
+		this.per_task = per_task;
+	}
+
+	/**
+	 * Creates the task for one half of the range
+	 *
+	 * @param first
+	 *            Number of the first item of the half
+	 * @param last
+	 *            Number after the last item of the half
+	 * @return The task
+	 */
+	protected abstract HashTask split(int first, int last);
+
+	/**
+	 * Hashes a range that is small enough to do in a single task
+	 *
+	 * @param first
+	 *            Number of the first item to hash
+	 * @param last
+	 *            Number after the last item to hash
+	 * @throws IOException
+	 */
+	protected abstract void computeRange(int first, int last)
+			throws IOException;
+
+	protected void compute() {
+		if (last - first > per_task) {
+			int middle = (first + last) >>> 1;
+			invokeAll(split(first, middle), split(middle, last));
+			return;
+		}
+		try {
+			computeRange(first, last);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// Get the calling thread's digest, reset and ready for use
+	public static MessageDigest getDigest() {
+		return digests.get();
+	}
+}
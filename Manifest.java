@@ -0,0 +1,378 @@
+/**
+ *
+ * Merkle tree over a file, used to verify a transfer as a whole. The file is
+ * cut into leaves of LEAF_SIZE bytes whose SHA-256 hashes are combined
+ * pairwise up to a single root; an odd node is carried up a level as it is.
+ * Leaves and interior nodes are hashed with different prefixes so that one
+ * cannot pass for the other.
+ *
+ * A sender with -manifest hashes the file on the fork-join pool while the
+ * first packets are already going out, and sends the tree as a trailer
+ * after the last byte of what it sends. Every packet of such a transfer
+ * carries FLAG_MANIFEST. The trailer (network byte order) is:
+ *
+ *  0-3		Magic "MRKL"
+ *  4-11	Length of the file
+ *  12-15	Leaf size
+ *  16-19	Number of leaves
+ *  20-		Leaf hashes, HASH_SIZE bytes each, followed by the root
+ *
+ * followed by a footer of the trailer's total length and the magic again,
+ * so that the trailer can be found from the end of the stream. Only the
+ * leaves and the root are sent, the interior nodes are rebuilt from them.
+ *
+ * Comparing two trees from the root down only descends into the subtrees
+ * that differ, which pinpoints the damaged ranges of the file.
+ *
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+public class Manifest {
+	public static final int LEAF_SIZE = 1 << 20;
+	public static final int HASH_SIZE = 32;
+	public static final byte TRAILER_TAG = 'M';
+	public static final int FOOTER_SIZE = 8;
+	private static byte[] MAGIC = { 'M', 'R', 'K', 'L' };
+	private static int PREFIX_SIZE = 20;
+	private static byte LEAF_PREFIX = 0;
+	private static byte NODE_PREFIX = 1;
+	// Leaves hashed by a single task before the work is split no further
+	private static int LEAVES_PER_TASK = 4;
+
+	// Each worker of the pool keeps its own leaf buffer
+	private static ThreadLocal<ByteBuffer> leaf_buffers = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(LEAF_SIZE);
+		}
+	};
+
+	private long file_length;
+	private byte[][][] levels;
+
+	public static class LeafTask extends RecursiveTask<byte[]> {
+		private static final long serialVersionUID = 1L;
+		private FileChannel channel;
+		private long offset;
+		private int length;
+
+		/**
+		 * Constructor for LeafTask
+		 *
+		 * @param channel
+		 *            Channel of the file
+		 * @param offset
+		 *            Offset of the leaf in the file
+		 * @param length
+		 *            Length of the leaf
+		 */
+		public LeafTask(FileChannel channel, long offset, int length) {
+			this.channel = channel;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		protected byte[] compute() {
+			try {
+				return hashLeaf(channel, offset, length);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	public static class TreeTask extends HashTask {
+		private static final long serialVersionUID = 1L;
+		private FileChannel channel;
+		private long file_length;
+		private byte[][] leaves;
+
+		/**
+		 * Constructor for TreeTask
+		 *
+		 * @param channel
+		 *            Channel of the file
+		 * @param file_length
+		 *            Length of the file
+		 * @param leaves
+		 *            Array the leaf hashes are stored in
+		 * @param first
+		 *            Index of the first leaf to hash
+		 * @param last
+		 *            Index after the last leaf to hash
+		 */
+		public TreeTask(FileChannel channel, long file_length, byte[][] leaves,
+				int first, int last) {
+			super(first, last, LEAVES_PER_TASK);
+			this.channel = channel;
+			this.file_length = file_length;
+			this.leaves = leaves;
+		}
+
+		protected HashTask split(int first, int last) {
+			return new TreeTask(channel, file_length, leaves, first, last);
+		}
+
+		protected void computeRange(int first, int last) throws IOException {
+			for (int x = first; x < last; x++) {
+				leaves[x] = hashLeaf(channel, (long) x * LEAF_SIZE,
+						getLeafLength(file_length, x));
+			}
+		}
+	}
+
+	/**
+	 * Constructor for Manifest
+	 *
+	 * @param file_length
+	 *            Length of the file
+	 * @param leaves
+	 *            Hashes of the file's leaves, the tree is built from them
+	 */
+	public Manifest(long file_length, byte[][] leaves) {
+		this.file_length = file_length;
+		ArrayList<byte[][]> built = new ArrayList<byte[][]>();
+		built.add(leaves);
+		byte[][] level = leaves;
+		while (level.length > 1) {
+			byte[][] parents = new byte[(level.length + 1) / 2][];
+			for (int x = 0; x < parents.length; x++) {
+				if (2 * x + 1 < level.length) {
+					parents[x] = hashNode(level[2 * x], level[2 * x + 1]);
+				} else {
+					parents[x] = level[2 * x];
+				}
+			}
+			built.add(parents);
+			level = parents;
+		}
+		this.levels = built.toArray(new byte[0][][]);
+	}
+
+	/**
+	 * Starts hashing a file on the fork-join pool
+	 *
+	 * @param filepath
+	 *            Path of the file
+	 * @return A task whose result is the file's trailer, see toTrailer()
+	 * @throws IOException
+	 */
+	public static ForkJoinTask<byte[]> submit(String filepath)
+			throws IOException {
+		final FileChannel channel = FileChannel.open(Paths.get(filepath),
+				StandardOpenOption.READ);
+		final long file_length = channel.size();
+		return ForkJoinPool.commonPool().submit(new RecursiveTask<byte[]>() {
+			protected byte[] compute() {
+				try {
+					byte[][] leaves = new byte[getLeafCount(file_length)][];
+					new TreeTask(channel, file_length, leaves, 0,
+							leaves.length).invoke();
+					return new Manifest(file_length, leaves).toTrailer();
+				} finally {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						// The hashes are complete either way
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Hashes a single leaf of a file
+	 *
+	 * @param channel
+	 *            Channel of the file
+	 * @param offset
+	 *            Offset of the leaf in the file
+	 * @param length
+	 *            Length of the leaf
+	 * @return The leaf's hash
+	 * @throws IOException
+	 */
+	public static byte[] hashLeaf(FileChannel channel, long offset,
+			int length) throws IOException {
+		ByteBuffer leaf = leaf_buffers.get();
+		leaf.clear().limit(length);
+		while (leaf.hasRemaining()) {
+			if (channel.read(leaf, offset + leaf.position()) < 0) {
+				break;
+			}
+		}
+		leaf.flip();
+		MessageDigest digest = HashTask.getDigest();
+		digest.update(LEAF_PREFIX);
+		digest.update(leaf);
+		return digest.digest();
+	}
+
+	// Hash two child nodes into their parent
+	private static byte[] hashNode(byte[] left, byte[] right) {
+		MessageDigest digest = HashTask.getDigest();
+		digest.update(NODE_PREFIX);
+		digest.update(left);
+		digest.update(right);
+		return digest.digest();
+	}
+
+	// Get the number of leaves of a file, an empty file has a single one
+	public static int getLeafCount(long file_length) {
+		return (int) Math.max(1, (file_length + LEAF_SIZE - 1) / LEAF_SIZE);
+	}
+
+	// Get the length of one of a file's leaves
+	public static int getLeafLength(long file_length, int leaf) {
+		return (int) Math.max(0, Math.min(LEAF_SIZE, file_length - (long) leaf
+				* LEAF_SIZE));
+	}
+
+	// Get the length of the trailer for a file, which is known up front
+	public static int getTrailerLength(long file_length) {
+		return PREFIX_SIZE + (getLeafCount(file_length) + 1) * HASH_SIZE
+				+ FOOTER_SIZE;
+	}
+
+	// Get the length of the file the tree covers
+	public long getFileLength() {
+		return file_length;
+	}
+
+	// Get the root of the tree
+	public byte[] getRoot() {
+		return levels[levels.length - 1][0];
+	}
+
+	/**
+	 * Serializes the leaves and the root as a trailer, footer included
+	 *
+	 * @return The trailer in byte array form
+	 */
+	public byte[] toTrailer() {
+		ByteBuffer trailer = ByteBuffer.allocate(getTrailerLength(file_length));
+		trailer.put(MAGIC);
+		trailer.putLong(file_length);
+		trailer.putInt(LEAF_SIZE);
+		trailer.putInt(levels[0].length);
+		for (byte[] leaf : levels[0]) {
+			trailer.put(leaf);
+		}
+		trailer.put(getRoot());
+		trailer.putInt(trailer.capacity());
+		trailer.put(MAGIC);
+		return trailer.array();
+	}
+
+	/**
+	 * Reads the length of a trailer from its footer
+	 *
+	 * @param footer
+	 *            The last FOOTER_SIZE bytes of the stream
+	 * @return The length of the trailer, footer included
+	 * @throws IOException
+	 *             If the stream does not end in a footer
+	 */
+	public static int readTrailerLength(byte[] footer) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(footer);
+		int length = buffer.getInt(footer.length - FOOTER_SIZE);
+		if (!Arrays.equals(MAGIC, 0, MAGIC.length, footer, footer.length
+				- MAGIC.length, footer.length)
+				|| length < PREFIX_SIZE + FOOTER_SIZE + 2 * HASH_SIZE) {
+			throw new IOException("Transfer does not end in a manifest");
+		}
+		return length;
+	}
+
+	/**
+	 * Parses a trailer and checks that its leaves add up to its root
+	 *
+	 * @param trailer
+	 *            The trailer, footer included
+	 * @return The tree the trailer describes
+	 * @throws IOException
+	 *             If the trailer is malformed or corrupted
+	 */
+	public static Manifest fromTrailer(byte[] trailer) throws IOException {
+		if (trailer == null || trailer.length < PREFIX_SIZE + FOOTER_SIZE
+				|| readTrailerLength(trailer) != trailer.length) {
+			throw new IOException("Transfer does not end in a manifest");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(trailer);
+		buffer.position(MAGIC.length);
+		long file_length = buffer.getLong();
+		int leaf_size = buffer.getInt();
+		int count = buffer.getInt();
+		if (file_length < 0 || leaf_size != LEAF_SIZE
+				|| count != getLeafCount(file_length)
+				|| trailer.length != getTrailerLength(file_length)) {
+			throw new IOException("Manifest does not describe a file");
+		}
+		byte[][] leaves = new byte[count][HASH_SIZE];
+		for (byte[] leaf : leaves) {
+			buffer.get(leaf);
+		}
+		byte[] root = new byte[HASH_SIZE];
+		buffer.get(root);
+		Manifest manifest = new Manifest(file_length, leaves);
+		if (!Arrays.equals(root, manifest.getRoot())) {
+			throw new IOException("Manifest is corrupted");
+		}
+		return manifest;
+	}
+
+	/**
+	 * Compares the tree of a received file with this one, descending only
+	 * into the subtrees that differ
+	 *
+	 * @param received
+	 *            Tree of the received file
+	 * @return The damaged ranges of the file as {offset, length} pairs,
+	 *         adjacent ranges merged, empty if the files match
+	 */
+	public List<long[]> diff(Manifest received) {
+		ArrayList<long[]> ranges = new ArrayList<long[]>();
+		if (received.file_length != file_length) {
+			ranges.add(new long[] { 0, file_length });
+		} else {
+			descend(levels.length - 1, 0, received, ranges);
+		}
+		return ranges;
+	}
+
+	// Collect the damaged leaves below a node that differs
+	private void descend(int level, int index, Manifest received,
+			List<long[]> ranges) {
+		if (Arrays.equals(levels[level][index], received.levels[level][index])) {
+			return;
+		}
+		if (level > 0) {
+			for (int x = 2 * index; x <= 2 * index + 1
+					&& x < levels[level - 1].length; x++) {
+				descend(level - 1, x, received, ranges);
+			}
+			return;
+		}
+		long offset = (long) index * LEAF_SIZE;
+		long length = getLeafLength(file_length, index);
+		long[] previous = ranges.isEmpty() ? null : ranges
+				.get(ranges.size() - 1);
+		if (previous != null && previous[0] + previous[1] == offset) {
+			previous[1] += length;
+		} else {
+			ranges.add(new long[] { offset, length });
+		}
+	}
+}
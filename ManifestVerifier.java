@@ -0,0 +1,101 @@
+/**
+ *
+ * Receiving side of Manifest. Every write to the output file is counted
+ * against the leaf it falls into, in order or at any offset, and as soon as
+ * a leaf is complete it is hashed on the fork-join pool while the transfer
+ * goes on. When the trailer has arrived only the last leaf, whose end was
+ * not known before, is left to hash, and the received tree is compared
+ * with the sender's.
+ *
+ * Every byte of the file must be written exactly once, which all receivers
+ * guarantee by never writing a packet twice.
+ *
+ */
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+public class ManifestVerifier {
+	private FileChannel channel;
+	private int[] written;
+	private ArrayList<ForkJoinTask<byte[]>> hashes;
+
+	/**
+	 * Constructor for ManifestVerifier
+	 *
+	 * @param channel
+	 *            Channel of the output file
+	 */
+	public ManifestVerifier(FileChannel channel) {
+		this.channel = channel;
+		this.written = new int[16];
+		this.hashes = new ArrayList<ForkJoinTask<byte[]>>();
+	}
+
+	/**
+	 * Counts a write to the output file, and starts hashing every leaf that
+	 * it completes
+	 *
+	 * @param offset
+	 *            Offset of the write in the file
+	 * @param length
+	 *            Number of bytes written
+	 */
+	public synchronized void written(long offset, int length) {
+		while (length > 0) {
+			int leaf = (int) (offset / Manifest.LEAF_SIZE);
+			int part = (int) Math.min(length, (long) (leaf + 1)
+					* Manifest.LEAF_SIZE - offset);
+			if (leaf >= written.length) {
+				written = Arrays.copyOf(written, Math.max(2 * written.length,
+						leaf + 1));
+			}
+			while (hashes.size() <= leaf) {
+				hashes.add(null);
+			}
+			written[leaf] += part;
+			if (written[leaf] == Manifest.LEAF_SIZE) {
+				hashes.set(leaf, ForkJoinPool.commonPool().submit(
+						new Manifest.LeafTask(channel, (long) leaf
+								* Manifest.LEAF_SIZE, Manifest.LEAF_SIZE)));
+			}
+			offset += part;
+			length -= part;
+		}
+	}
+
+	/**
+	 * Compares the output file with the sender's tree, once the file is
+	 * complete and cut to its length
+	 *
+	 * @param expected
+	 *            The sender's tree, from the trailer
+	 * @return The damaged ranges of the file as {offset, length} pairs,
+	 *         empty if the file matches
+	 * @throws IOException
+	 */
+	public synchronized List<long[]> verify(Manifest expected)
+			throws IOException {
+		long file_length = expected.getFileLength();
+		byte[][] leaves = new byte[Manifest.getLeafCount(file_length)][];
+		for (int x = 0; x < leaves.length; x++) {
+			ForkJoinTask<byte[]> hash = x < hashes.size() ? hashes.get(x)
+					: null;
+			if (hash != null && x < leaves.length - 1) {
+				leaves[x] = hash.join();
+			} else {
+				// The last leaf may have been completed by trailer bytes,
+				// and a leaf that was never completed is damaged anyway
+				leaves[x] = Manifest.hashLeaf(channel, (long) x
+						* Manifest.LEAF_SIZE, Manifest.getLeafLength(
+						file_length, x));
+			}
+		}
+		return expected.diff(new Manifest(file_length, leaves));
+	}
+}
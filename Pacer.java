@@ -0,0 +1,126 @@
+/**
+ *
+ * Token bucket that spreads datagrams evenly over time instead of letting
+ * them leave in bursts. Tokens (bytes) are added at the target rate and a
+ * datagram may only be sent once there are enough tokens for it. The bucket
+ * holds at most about a millisecond worth of data, or min_burst bytes if
+ * that is more, since waits much shorter than that cannot be timed
+ * reliably.
+ *
+ * Time is taken from System.nanoTime(). A rate of zero or less disables
+ * pacing. The pacer is not thread-safe.
+ *
+ */
+
+import java.util.concurrent.locks.LockSupport;
+
+public class Pacer {
+	private static long BURST_NANOS = 1000000L;
+
+	private double rate;
+	private int min_burst;
+	private double capacity;
+	private double tokens;
+	private long last;
+
+	/**
+	 * Constructor for Pacer
+	 *
+	 * @param rate
+	 *            Target rate in bytes per second, zero or less for none
+	 * @param min_burst
+	 *            Smallest amount of bytes the bucket can hold, should be at
+	 *            least one datagram
+	 */
+	public Pacer(double rate, int min_burst) {
+		this.min_burst = min_burst;
+		this.last = System.nanoTime();
+		setRate(rate);
+		this.tokens = capacity;
+	}
+
+	/**
+	 * Changes the target rate, e.g. as the congestion window moves
+	 *
+	 * @param rate
+	 *            Target rate in bytes per second, zero or less for none
+	 */
+	public void setRate(double rate) {
+		refill(System.nanoTime());
+		boolean enabled = this.rate <= 0 && rate > 0;
+		this.rate = rate;
+		this.capacity = Math.max(min_burst, rate * BURST_NANOS / 1e9);
+		// Pacing that is switched back on starts with a full bucket
+		this.tokens = enabled ? capacity : Math.min(tokens, capacity);
+	}
+
+	// Get the target rate in bytes per second
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Works out how long to wait before a datagram may be sent
+	 *
+	 * @param bytes
+	 *            Size of the datagram
+	 * @return Time to wait in nanoseconds, 0 if it may be sent right away
+	 */
+	public long nanosUntilReady(int bytes) {
+		if (rate <= 0) {
+			return 0;
+		}
+		refill(System.nanoTime());
+		double needed = Math.min(bytes, capacity);
+		if (tokens >= needed) {
+			return 0;
+		}
+		return (long) Math.ceil((needed - tokens) * 1e9 / rate);
+	}
+
+	/**
+	 * Takes the tokens for a datagram if there are enough of them
+	 *
+	 * @param bytes
+	 *            Size of the datagram
+	 * @return True if the datagram may be sent now
+	 */
+	public boolean tryConsume(int bytes) {
+		if (nanosUntilReady(bytes) > 0) {
+			return false;
+		}
+		consume(bytes);
+		return true;
+	}
+
+	/**
+	 * Blocks the calling thread until a datagram may be sent, then takes its
+	 * tokens
+	 *
+	 * @param bytes
+	 *            Size of the datagram
+	 */
+	public void pace(int bytes) {
+		long wait = nanosUntilReady(bytes);
+		while (wait > 0) {
+			LockSupport.parkNanos(this, wait);
+			wait = nanosUntilReady(bytes);
+		}
+		consume(bytes);
+	}
+
+	// Take the tokens for a datagram, none are kept track of without pacing
+	private void consume(int bytes) {
+		if (rate > 0) {
+			tokens -= bytes;
+		}
+	}
+
+	// Add the tokens earned since the last refill
+	private void refill(long now) {
+		if (rate > 0) {
+			tokens = Math.min(capacity, tokens + (now - last) * rate / 1e9);
+		}
+		last = now;
+	}
+}
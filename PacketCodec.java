@@ -0,0 +1,233 @@
+/**
+ *
+ * Flyweight that reads and writes the header fields of a packet or an
+ * acknowledgment in place, on whatever buffer it is currently bound to. A
+ * codec is bound once to a reusable send, receive or acknowledgment buffer,
+ * so building and parsing packets on the hot path allocates nothing: no
+ * header arrays, no concatenated copies and no new DatagramPackets.
+ *
+ * All access is absolute, so the buffer's position and limit are left alone
+ * and a header can be written into a buffer whose data is already in place.
+ * The layout is the one described in Utilities.
+ *
+ */
+
+import java.nio.ByteBuffer;
+
+public class PacketCodec {
+	private ByteBuffer buffer;
+
+	/**
+	 * Constructor for PacketCodec
+	 *
+	 * @param buffer
+	 *            Buffer holding the packet, heap or direct
+	 */
+	public PacketCodec(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Constructor for a PacketCodec bound to an array, e.g. the buffer of a
+	 * reused DatagramPacket
+	 *
+	 * @param array
+	 *            Array holding the packet
+	 */
+	public PacketCodec(byte[] array) {
+		this(ByteBuffer.wrap(array));
+	}
+
+	/**
+	 * Binds the codec to another buffer
+	 *
+	 * @param buffer
+	 *            Buffer holding the packet
+	 * @return This codec
+	 */
+	public PacketCodec wrap(ByteBuffer buffer) {
+		this.buffer = buffer;
+		return this;
+	}
+
+	// Get the buffer the codec is bound to
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Checks whether a received datagram carries a header this program
+	 * understands
+	 *
+	 * @param length
+	 *            The length of the datagram
+	 * @return True if the datagram is long enough and has the right version
+	 */
+	public boolean isValid(int length) {
+		return length >= Utilities.ACK_SIZE
+				&& buffer.get(0) == (byte) Utilities.HEADER_VERSION;
+	}
+
+	// Get the packet or acknowledgment number
+	public int getNumber() {
+		return buffer.getInt(2);
+	}
+
+	// Get the length of the file data following the header
+	public int getDataLength() {
+		return buffer.getShort(6) & 0xFFFF;
+	}
+
+	// Get the send time the packet was stamped with, in microseconds
+	public int getTimestamp() {
+		return buffer.getInt(8);
+	}
+
+	// Whether the end-of-file flag is set
+	public boolean isEOF() {
+		return (buffer.get(1) & Utilities.FLAG_EOF) != 0;
+	}
+
+	// Whether the datagram acknowledges file data
+	public boolean isAck() {
+		return (buffer.get(1) & Utilities.FLAG_ACK) != 0
+				&& (buffer.get(1) & Utilities.FLAG_PROBE) == 0;
+	}
+
+	// Whether the datagram is a path probe or the answer to one
+	public boolean isProbe() {
+		return (buffer.get(1) & Utilities.FLAG_PROBE) != 0;
+	}
+
+	// Whether the datagram is a selective acknowledgment
+	public boolean isSack() {
+		return (buffer.get(1) & Utilities.FLAG_SACK) != 0;
+	}
+
+	// Whether the datagram is a parity packet
+	public boolean isParity() {
+		return (buffer.get(1) & Utilities.FLAG_PARITY) != 0;
+	}
+
+	// Whether the packet carries compressed blocks
+	public boolean isCompressed() {
+		return (buffer.get(1) & Utilities.FLAG_COMPRESSED) != 0;
+	}
+
+	// Flag the packet as carrying compressed blocks
+	public void setCompressed() {
+		buffer.put(1, (byte) (buffer.get(1) | Utilities.FLAG_COMPRESSED));
+	}
+
+	// Whether the packet belongs to a transfer that ends in a manifest
+	public boolean hasManifest() {
+		return (buffer.get(1) & Utilities.FLAG_MANIFEST) != 0;
+	}
+
+	// Flag the packet as belonging to a transfer that ends in a manifest
+	public void setManifest() {
+		buffer.put(1, (byte) (buffer.get(1) | Utilities.FLAG_MANIFEST));
+	}
+
+	/**
+	 * Writes the header of a data packet
+	 *
+	 * @param number
+	 *            Number of the particular packet
+	 * @param length
+	 *            Amount of file data carried by the packet
+	 * @param eof
+	 *            Whether or not the packet is the end-of-file
+	 */
+	public void writeHeader(int number, int length, boolean eof) {
+		buffer.put(0, (byte) Utilities.HEADER_VERSION);
+		buffer.put(1, eof ? Utilities.FLAG_EOF : 0);
+		buffer.putInt(2, number);
+		buffer.putShort(6, (short) length);
+		buffer.putInt(8, 0);
+		buffer.putInt(Utilities.CHECKSUM_OFFSET, 0);
+	}
+
+	/**
+	 * Stamps a data packet with the current time right before it is sent
+	 *
+	 * @param retransmission
+	 *            Whether the packet has been sent before
+	 */
+	public void stamp(boolean retransmission) {
+		buffer.putInt(8, Utilities.timestamp());
+		int flags = buffer.get(1);
+		if (retransmission == true) {
+			flags |= Utilities.FLAG_RETRANS;
+		} else {
+			flags &= ~Utilities.FLAG_RETRANS;
+		}
+		buffer.put(1, (byte) flags);
+	}
+
+	/**
+	 * Seals a packet whose data follows the header in the same buffer with
+	 * its checksum, as the last step before it is sent
+	 */
+	public void seal() {
+		int limit = buffer.limit();
+		int position = buffer.position();
+		buffer.limit(Utilities.HEADER_SIZE + getDataLength()).position(
+				Utilities.HEADER_SIZE);
+		buffer.putInt(Utilities.CHECKSUM_OFFSET, Utilities.checksum(buffer,
+				buffer));
+		buffer.limit(limit).position(position);
+	}
+
+	/**
+	 * Seals a header with the checksum of the header and the data that is
+	 * sent along with it, as the last step before they are sent
+	 *
+	 * @param data
+	 *            The packet's file data, from its position to its limit
+	 */
+	public void seal(ByteBuffer data) {
+		buffer.putInt(Utilities.CHECKSUM_OFFSET, Utilities.checksum(buffer,
+				data));
+	}
+
+	/**
+	 * Checks whether a received data or parity packet arrived intact
+	 *
+	 * @param length
+	 *            The length of the datagram
+	 * @return True if the packet holds all of its data and the checksum
+	 *         matches
+	 */
+	public boolean isIntact(int length) {
+		if (length < Utilities.HEADER_SIZE
+				|| Utilities.HEADER_SIZE + getDataLength() > length) {
+			return false;
+		}
+		int limit = buffer.limit();
+		int position = buffer.position();
+		buffer.limit(Utilities.HEADER_SIZE + getDataLength()).position(
+				Utilities.HEADER_SIZE);
+		int checksum = Utilities.checksum(buffer, buffer);
+		buffer.limit(limit).position(position);
+		return buffer.getInt(Utilities.CHECKSUM_OFFSET) == checksum;
+	}
+
+	/**
+	 * Writes an acknowledgment answering the given packet
+	 *
+	 * @param number
+	 *            Number of the acknowledged packet
+	 * @param packet
+	 *            Codec bound to the packet that triggered the acknowledgment
+	 * @return The length of the acknowledgment
+	 */
+	public int writeAck(int number, PacketCodec packet) {
+		buffer.put(0, (byte) Utilities.HEADER_VERSION);
+		buffer.put(1, (byte) (Utilities.FLAG_ACK | (packet.buffer.get(1)
+				& Utilities.FLAG_RETRANS)));
+		buffer.putInt(2, number);
+		buffer.putInt(6, packet.getTimestamp());
+		return Utilities.ACK_SIZE;
+	}
+}
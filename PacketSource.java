@@ -0,0 +1,310 @@
+/**
+ *
+ * Hands out the file data for a given packet number straight from a read-only
+ * memory mapping of the input file. Senders no longer read the file into a
+ * fresh array for every packet or keep a copy of every packet in flight; a
+ * retransmission simply reads the same slice of the mapping again.
+ *
+ * A single MappedByteBuffer cannot exceed 2 GB, so the file is mapped lazily
+ * in regions that always hold a whole number of packets.
+ *
+ * A source can also cover a single stripe of the file, for transfers that
+ * are split over several parallel flows. Stripe i of N holds the file's
+ * packets i, i + N, i + 2N and so on, and numbers them 0, 1, 2 within the
+ * stripe.
+ *
+ * A source opened on the output of BlockCompressor flags its packets as
+ * carrying compressed blocks. A source can also send the trailer of a
+ * Manifest after the file; the few packets that carry trailer bytes are
+ * copied into a buffer of their own rather than read from the mapping.
+ *
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinTask;
+
+public class PacketSource {
+	private static int REGION_TARGET = 1 << 30;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long file_size;
+	private int data_size;
+	private long packet_count;
+	private int stream;
+	private int streams;
+	private long stripe_count;
+	private int packets_per_region;
+	private MappedByteBuffer[] regions;
+	private ByteBuffer[] views;
+	private boolean compressed = false;
+	private ForkJoinTask<byte[]> trailer;
+	private int trailer_length = 0;
+	private ByteBuffer tail;
+	private ByteBuffer empty = ByteBuffer.allocate(0);
+
+	/**
+	 * Constructor for PacketSource
+	 *
+	 * @param filepath
+	 *            Path of the file to send
+	 * @param data_size
+	 *            Amount of file data carried by every full packet
+	 * @throws IOException
+	 */
+	public PacketSource(String filepath, int data_size) throws IOException {
+		this(filepath, data_size, 0, 1);
+	}
+
+	/**
+	 * Constructor for a PacketSource that covers a single stripe of the file
+	 *
+	 * @param filepath
+	 *            Path of the file to send
+	 * @param data_size
+	 *            Amount of file data carried by every full packet
+	 * @param stream
+	 *            Index of the stripe
+	 * @param streams
+	 *            Number of stripes the file is split into
+	 * @throws IOException
+	 */
+	public PacketSource(String filepath, int data_size, int stream,
+			int streams) throws IOException {
+		this.file = new RandomAccessFile(filepath, "r");
+		this.channel = file.getChannel();
+		this.file_size = channel.size();
+		this.data_size = data_size;
+		this.stream = stream;
+		this.streams = streams;
+		count();
+		this.packets_per_region = Math.max(1, REGION_TARGET / data_size);
+		long region_bytes = (long) packets_per_region * data_size;
+		this.regions = new MappedByteBuffer[(int) ((file_size
+				+ region_bytes - 1) / region_bytes)];
+		this.views = new ByteBuffer[regions.length];
+	}
+
+	// Get the size of the file in bytes
+	public long getFileSize() {
+		return file_size;
+	}
+
+	/**
+	 * Sends a trailer after the file, e.g. a manifest that is still being
+	 * computed
+	 *
+	 * @param trailer
+	 *            Task whose result is the trailer, it is only waited for
+	 *            once the trailer's packets are sent
+	 * @param length
+	 *            Length of the trailer, which has to be known up front
+	 */
+	public void setTrailer(ForkJoinTask<byte[]> trailer, int length) {
+		this.trailer = trailer;
+		this.trailer_length = length;
+		count();
+	}
+
+	// Count the packets of the file and the trailer, and of the stripe
+	private void count() {
+		long stream_size = file_size + trailer_length;
+		// An empty file is still sent as a single empty end-of-file packet
+		this.packet_count = Math.max(1, (stream_size + data_size - 1)
+				/ data_size);
+		// A stripe past the end of the file still gets an empty packet so
+		// that its flow can signal the end-of-file
+		this.stripe_count = Math.max(1, (packet_count - stream + streams - 1)
+				/ streams);
+	}
+
+	// Flag every packet as carrying compressed blocks
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	// Get the total number of packets needed for the file, or the stripe
+	public long getPacketCount() {
+		return stripe_count;
+	}
+
+	/**
+	 * Checks whether a packet number belongs to this file
+	 *
+	 * @param number
+	 *            The packet number, treated as unsigned
+	 * @return True if the file has a packet with the given number
+	 */
+	public boolean hasPacket(int number) {
+		return (number & 0xFFFFFFFFL) < stripe_count;
+	}
+
+	// Whether the given packet is the end-of-file packet
+	public boolean isLast(int number) {
+		return (number & 0xFFFFFFFFL) == stripe_count - 1;
+	}
+
+	/**
+	 * Returns the amount of file data carried by a packet
+	 *
+	 * @param number
+	 *            The packet number
+	 * @return The length of the packet's data
+	 */
+	public int getLength(int number) {
+		long offset = toFileIndex(number) * data_size;
+		return (int) Math.max(0, Math.min(data_size, file_size
+				+ trailer_length - offset));
+	}
+
+	/**
+	 * Returns a view of the file data for a packet. The view shares its
+	 * content with the mapping, so nothing is copied, and there is a single
+	 * view per region that is repositioned on every call. It is only valid
+	 * until the next call.
+	 *
+	 * @param number
+	 *            The packet number
+	 * @return A buffer positioned at the packet's data
+	 * @throws IOException
+	 */
+	public ByteBuffer getData(int number) throws IOException {
+		if (getLength(number) == 0) {
+			empty.clear();
+			return empty;
+		}
+		if (isTail(number)) {
+			return getTail(number);
+		}
+		long index = toFileIndex(number);
+		int region = (int) (index / packets_per_region);
+		if (views[region] == null) {
+			views[region] = getRegion(region).duplicate();
+		}
+		ByteBuffer view = views[region];
+		int start = (int) (index % packets_per_region) * data_size;
+		view.limit(start + getLength(number));
+		view.position(start);
+		return view;
+	}
+
+	/**
+	 * Writes a complete packet, header included, into the buffer a codec is
+	 * bound to. The data is copied straight out of the mapping and nothing
+	 * is allocated.
+	 *
+	 * @param number
+	 *            The packet number
+	 * @param packet
+	 *            Codec bound to a buffer at least HEADER_SIZE + data_size
+	 *            long
+	 * @return The length of the packet
+	 * @throws IOException
+	 */
+	public int readPacket(int number, PacketCodec packet) throws IOException {
+		int length = writeHeader(number, packet);
+		if (length > 0 && isTail(number)) {
+			packet.buffer().put(Utilities.HEADER_SIZE, getTail(number), 0,
+					length);
+		} else if (length > 0) {
+			long index = toFileIndex(number);
+			packet.buffer().put(Utilities.HEADER_SIZE,
+					getRegion((int) (index / packets_per_region)),
+					(int) (index % packets_per_region) * data_size, length);
+		}
+		return Utilities.HEADER_SIZE + length;
+	}
+
+	/**
+	 * Writes the header of a packet, flags included, into the buffer a codec
+	 * is bound to
+	 *
+	 * @param number
+	 *            The packet number
+	 * @param packet
+	 *            Codec bound to a buffer at least HEADER_SIZE long
+	 * @return The length of the packet's data
+	 */
+	public int writeHeader(int number, PacketCodec packet) {
+		int length = getLength(number);
+		packet.writeHeader(number, length, isLast(number));
+		if (compressed == true) {
+			packet.setCompressed();
+		}
+		if (trailer != null) {
+			packet.setManifest();
+		}
+		return length;
+	}
+
+	// Whether a packet carries bytes of the trailer
+	private boolean isTail(int number) {
+		return trailer_length > 0
+				&& (toFileIndex(number) + 1) * data_size > file_size;
+	}
+
+	/**
+	 * Copies the data of a packet that carries bytes of the trailer into the
+	 * tail buffer, waiting for the trailer if it is not ready yet
+	 *
+	 * @param number
+	 *            The packet number
+	 * @return The tail buffer holding the packet's data, only valid until
+	 *         the next call
+	 * @throws IOException
+	 */
+	private ByteBuffer getTail(int number) throws IOException {
+		if (tail == null) {
+			tail = ByteBuffer.allocate(data_size);
+		}
+		long offset = toFileIndex(number) * data_size;
+		int length = getLength(number);
+		tail.clear().limit(length);
+		while (offset + tail.position() < file_size) {
+			tail.limit((int) Math.min(length, file_size - offset));
+			if (channel.read(tail, offset + tail.position()) < 0) {
+				throw new IOException("File shrank while sending");
+			}
+		}
+		tail.limit(length);
+		byte[] bytes;
+		try {
+			bytes = trailer.join();
+		} catch (RuntimeException e) {
+			throw new IOException("Trailer could not be computed", e);
+		}
+		int start = (int) (offset + tail.position() - file_size);
+		tail.put(bytes, start, tail.remaining());
+		return tail.flip();
+	}
+
+	// Get the position of a packet of the stripe among all of the file's
+	private long toFileIndex(int number) {
+		return (number & 0xFFFFFFFFL) * streams + stream;
+	}
+
+	// Map the region containing the given packets on first use
+	private ByteBuffer getRegion(int region) throws IOException {
+		if (regions.length == 0) {
+			return ByteBuffer.allocate(0);
+		}
+		if (regions[region] == null) {
+			long start = (long) region * packets_per_region * data_size;
+			long length = Math.min((long) packets_per_region * data_size,
+					file_size - start);
+			regions[region] = channel.map(FileChannel.MapMode.READ_ONLY,
+					start, length);
+		}
+		return regions[region];
+	}
+
+	// Release the file once the transfer is complete
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,213 @@
+/**
+ *
+ * Settles the datagram size of a transfer. A sender either asks for a size
+ * with -size <bytes>, or with -probe finds the largest size that reaches the
+ * receiver: it sends padded probes of the common path sizes, largest first,
+ * and takes the first size the receiver confirms. Fewer, larger packets
+ * mean fewer system calls, acknowledgments and timers for the same file.
+ *
+ * Java 17 cannot set the don't-fragment bit on a datagram, so a probe larger
+ * than the link would be fragmented by the sending host rather than
+ * dropped. Probes are therefore capped at the MTU of the interface the
+ * receiver is reached through, and a probe that is not answered after a few
+ * tries counts as too large for the path.
+ *
+ */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+
+public class PathProbe {
+	// Jumbo frame, Ethernet, PPPoE and the IPv6 minimum MTU, as UDP payload
+	private static int[] CANDIDATES = { 8972, 1472, 1464, 1232 };
+	private static int TRIES = 3;
+
+	/**
+	 * Works out the datagram size for a transfer from the command line
+	 *
+	 * @param argv
+	 *            The sender's command line
+	 * @param socket
+	 *            Socket to probe through, no other thread may be receiving
+	 *            on it
+	 * @param ip
+	 *            IP address of the receiver
+	 * @param port
+	 *            Port number of the receiver
+	 * @param timeout
+	 *            Time to wait for the answer to a probe in milliseconds
+	 * @return The datagram size in bytes, header included
+	 * @throws IOException
+	 */
+	public static int getPacketSize(String argv[], DatagramSocket socket,
+			InetAddress ip, int port, int timeout) throws IOException {
+		if (Utilities.hasFlag(argv, "-probe")) {
+			int size = probe(socket, ip, port, timeout);
+			System.out.println("Datagram size: " + size);
+			return size;
+		}
+		int size = Integer.parseInt(Utilities.getOption(argv, "-size",
+				Integer.toString(Utilities.DEFAULT_PACKET_SIZE)));
+		return Math.max(Utilities.HEADER_SIZE + 1,
+				Math.min(Utilities.MAX_PACKET_SIZE, size));
+	}
+
+	/**
+	 * Finds the largest candidate size that reaches the receiver whole
+	 *
+	 * @param socket
+	 *            Socket to probe through
+	 * @param ip
+	 *            IP address of the receiver
+	 * @param port
+	 *            Port number of the receiver
+	 * @param timeout
+	 *            Time to wait for the answer to a probe in milliseconds
+	 * @return The datagram size in bytes, DEFAULT_PACKET_SIZE if no probe
+	 *         was answered
+	 * @throws IOException
+	 */
+	public static int probe(DatagramSocket socket, InetAddress ip, int port,
+			int timeout) throws IOException {
+		int limit = getLinkLimit(ip, port);
+		byte[] probe = new byte[Utilities.MAX_PACKET_SIZE];
+		byte[] answer = new byte[Utilities.ACK_SIZE];
+		DatagramPacket sent = new DatagramPacket(probe, 0, ip, port);
+		DatagramPacket received = new DatagramPacket(answer, answer.length);
+		int previous_timeout = socket.getSoTimeout();
+		int confirmed = 0;
+
+		try {
+			socket.setSoTimeout(Math.max(1, timeout));
+			for (int candidate : CANDIDATES) {
+				if (candidate > limit || candidate <= confirmed) {
+					continue;
+				}
+				Utilities.writeHeader(probe, candidate, candidate
+						- Utilities.HEADER_SIZE, false);
+				probe[1] = Utilities.FLAG_PROBE;
+				sent.setLength(candidate);
+
+				for (int x = 0; x < TRIES && confirmed < candidate; x++) {
+					socket.send(sent);
+					try {
+						// Answers to earlier probes may still come in, and
+						// confirm a larger size just as well
+						do {
+							received.setLength(answer.length);
+							socket.receive(received);
+							if (received.getLength() >= Utilities.ACK_SIZE
+									&& Utilities.isValidHeader(answer)
+									&& Utilities.isProbe(answer)) {
+								confirmed = Math.max(confirmed,
+										Utilities.getPacketNum(answer));
+							}
+						} while (confirmed < candidate);
+					} catch (SocketTimeoutException e) {
+						// Lost, or too large for the path
+					}
+				}
+				if (confirmed >= candidate) {
+					break;
+				}
+			}
+		} finally {
+			socket.setSoTimeout(previous_timeout);
+		}
+		return confirmed > 0 ? confirmed : Utilities.DEFAULT_PACKET_SIZE;
+	}
+
+	/**
+	 * Answers a datagram received on a socket if it is a probe
+	 *
+	 * @param socket
+	 *            The receiver's socket
+	 * @param datagram
+	 *            The datagram as it arrived
+	 * @return True if the datagram was a probe, which carries no file data
+	 * @throws IOException
+	 */
+	public static boolean answer(DatagramSocket socket,
+			DatagramPacket datagram) throws IOException {
+		byte[] probe = datagram.getData();
+		if (datagram.getLength() < Utilities.HEADER_SIZE
+				|| !Utilities.isProbe(probe)) {
+			return false;
+		}
+		byte[] ack = new byte[Utilities.ACK_SIZE];
+		if (writeAnswer(ack, probe, datagram.getLength()) > 0) {
+			socket.send(new DatagramPacket(ack, ack.length, datagram
+					.getSocketAddress()));
+		}
+		return true;
+	}
+
+	/**
+	 * Answers a datagram received by an engine if it is a probe, without
+	 * connecting the engine to the prober
+	 *
+	 * @param engine
+	 *            The receiver's engine
+	 * @param probe
+	 *            The datagram in byte array form
+	 * @param length
+	 *            The length of the datagram
+	 * @return True if the datagram was a probe, which carries no file data
+	 * @throws IOException
+	 */
+	public static boolean answer(TransportEngine engine, byte[] probe,
+			int length) throws IOException {
+		if (length < Utilities.HEADER_SIZE || !Utilities.isProbe(probe)) {
+			return false;
+		}
+		byte[] ack = new byte[Utilities.ACK_SIZE];
+		if (writeAnswer(ack, probe, length) > 0) {
+			engine.sendTo(ack, ack.length, engine.getLastSource());
+		}
+		return true;
+	}
+
+	/**
+	 * Answers a probe that has arrived
+	 *
+	 * @param ack
+	 *            Array the answer is written into, at least ACK_SIZE long
+	 * @param probe
+	 *            The probe in byte array form
+	 * @param length
+	 *            The length of the datagram as it arrived
+	 * @return The length of the answer, or 0 if the probe did not arrive
+	 *         whole and must not be answered
+	 */
+	public static int writeAnswer(byte[] ack, byte[] probe, int length) {
+		if (length < Utilities.HEADER_SIZE
+				|| (probe[1] & Utilities.FLAG_ACK) != 0
+				|| Utilities.getPacketNum(probe) != length) {
+			return 0;
+		}
+		Utilities.writeAck(ack, length, probe);
+		ack[1] |= Utilities.FLAG_PROBE;
+		return Utilities.ACK_SIZE;
+	}
+
+	// Largest UDP payload the interface towards the receiver carries whole
+	private static int getLinkLimit(InetAddress ip, int port) {
+		try (DatagramSocket route = new DatagramSocket()) {
+			route.connect(ip, port);
+			NetworkInterface link = NetworkInterface.getByInetAddress(route
+					.getLocalAddress());
+			if (link == null || link.getMTU() <= 0) {
+				return Utilities.MAX_PACKET_SIZE;
+			}
+			int overhead = ip instanceof Inet6Address ? 48 : 28;
+			return link.getMTU() - overhead;
+		} catch (IOException e) {
+			return Utilities.MAX_PACKET_SIZE;
+		}
+	}
+}
@@ -0,0 +1,456 @@
+/**
+ *
+ * Lets an interrupted transfer resume where it stopped instead of starting
+ * over from packet 0. A receiver started with -resume keeps a journal next
+ * to the output file for every flow, a bitmap of the packets it has written.
+ * Recording a packet sets a bit in a copy of the bitmap on the heap, which
+ * is copied into the memory-mapped journal every CHECKPOINT_NANOS, only
+ * after the output file has been forced to disk, and then forced to disk
+ * itself. A bit thus never reaches the journal file before its packet is on
+ * disk, so the journal never claims more than the file holds, whether the
+ * receiver process dies or the machine goes down. What was recorded since
+ * the last checkpoint is lost and sent again.
+ *
+ * A sender started with -resume asks every flow of the receiver which
+ * packets are still missing before it sends anything, and then only sends
+ * those. The journal is laid out as follows (network byte order):
+ *
+ *  0-3		JOURNAL_MAGIC
+ *  4-7		Data size of the transfer, 0 until known
+ *  8-11	Number of stripes the file is split into
+ *  12-15	Number of the flow's end-of-file packet, -1 until known
+ *  16-		Bit n (least significant bit first) is set once packet n has
+ *  		been written
+ *
+ * A resume query is a probe that also has FLAG_SACK set, and asks for the
+ * missing packets from the number in bytes 2-5 on. The answer has FLAG_ACK,
+ * FLAG_PROBE and FLAG_SACK set, echoes the number in bytes 2-5, and goes on
+ * with:
+ *
+ *  6-7		Number of ranges that follow
+ *  8-11	Number to ask from for the next ranges, -1 if there are none
+ *  12-15	Data size of the transfer, 0 if not known
+ *  16-		Ranges of missing packets as pairs of the first number and the
+ *  		number after the last, where -1 means the end of the stripe
+ *
+ * A receiver without a journal answers that everything is missing, and one
+ * that does not know about resume queries does not answer at all, which
+ * the sender takes the same way.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class ReceiveJournal {
+	public static final int JOURNAL_MAGIC = 0x524A4E4C;
+	public static final int JOURNAL_HEADER_SIZE = 16;
+	public static final long CHECKPOINT_NANOS = 1000000000L;
+	// Answers stay small enough for any path
+	public static final int ANSWER_SIZE = Utilities.DEFAULT_PACKET_SIZE;
+	private static int MAX_RANGES = (ANSWER_SIZE - Utilities.HEADER_SIZE) / 8;
+	private static int INITIAL_SIZE = 1 << 16;
+	private static int TRIES = 3;
+
+	private File path;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private byte[] bits;
+	// Range of the bitmap changed since the last checkpoint
+	private int dirty_first = Integer.MAX_VALUE;
+	private int dirty_end = 0;
+	private boolean dirty = false;
+	private long last_checkpoint;
+
+	public static class Missing {
+		private int[] firsts;
+		private int[] ends;
+		private int data_size;
+
+		/**
+		 * Constructor for Missing
+		 *
+		 * @param firsts
+		 *            First number of every range, in ascending order
+		 * @param ends
+		 *            Number after the last of every range, -1 for the end of
+		 *            the stripe
+		 * @param data_size
+		 *            Data size the receiver has written the packets with, 0
+		 *            if not known
+		 */
+		public Missing(int[] firsts, int[] ends, int data_size) {
+			this.firsts = firsts;
+			this.ends = ends;
+			this.data_size = data_size;
+		}
+
+		/**
+		 * Checks whether the receiver still needs a packet
+		 *
+		 * @param number
+		 *            The packet number
+		 * @return True if the packet lies in one of the missing ranges
+		 */
+		public boolean contains(int number) {
+			int x = Arrays.binarySearch(firsts, number);
+			if (x < 0) {
+				x = -x - 2;
+			}
+			return x >= 0 && (ends[x] == -1 || number < ends[x]);
+		}
+
+		// Get the data size the receiver has written the packets with
+		public int getDataSize() {
+			return data_size;
+		}
+
+		// Get the number of missing ranges
+		public int size() {
+			return firsts.length;
+		}
+	}
+
+	/**
+	 * Opens the journal of a flow, picking up where an earlier run left off
+	 * if it was for the same number of stripes
+	 *
+	 * @param filename
+	 *            Path of the journal
+	 * @param streams
+	 *            Number of stripes the file is split into
+	 * @throws IOException
+	 */
+	public ReceiveJournal(String filename, int streams) throws IOException {
+		this.path = new File(filename);
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		this.channel = file.getChannel();
+		long size = channel.size();
+		this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(
+				size, INITIAL_SIZE));
+		if (size < JOURNAL_HEADER_SIZE || map.getInt(0) != JOURNAL_MAGIC
+				|| map.getInt(8) != streams) {
+			// Nothing to resume from, start a fresh journal
+			map.put(0, new byte[map.capacity()]);
+			map.putInt(0, JOURNAL_MAGIC);
+			map.putInt(8, streams);
+			map.putInt(12, -1);
+			map.force();
+		}
+		this.bits = new byte[map.capacity() - JOURNAL_HEADER_SIZE];
+		map.get(JOURNAL_HEADER_SIZE, bits);
+		this.last_checkpoint = System.nanoTime();
+	}
+
+	/**
+	 * Checks whether a packet has been written to the file
+	 *
+	 * @param number
+	 *            The packet number
+	 * @return True if the packet's bit is set
+	 */
+	public boolean has(int number) {
+		long bit = number & 0xFFFFFFFFL;
+		long index = bit >>> 3;
+		return index < bits.length
+				&& (bits[(int) index] & (1 << (bit & 7))) != 0;
+	}
+
+	/**
+	 * Records that a packet has been written to the file, growing the
+	 * bitmap if need be. The journal file only learns about it at the next
+	 * checkpoint.
+	 *
+	 * @param number
+	 *            The packet number
+	 */
+	public void mark(int number) {
+		long bit = number & 0xFFFFFFFFL;
+		int index = (int) (bit >>> 3);
+		if (index >= bits.length) {
+			bits = Arrays.copyOf(bits, Math.max(2 * bits.length, index + 1));
+		}
+		bits[index] |= (byte) (1 << (bit & 7));
+		dirty_first = Math.min(dirty_first, index);
+		dirty_end = Math.max(dirty_end, index + 1);
+		dirty = true;
+	}
+
+	// Get the number of the first packet that has not been written
+	public int firstMissing() {
+		return nextMissing(0);
+	}
+
+	// Get the number of the first packet from the given one that has not
+	// been written
+	private int nextMissing(int number) {
+		while (has(number)) {
+			number++;
+		}
+		return number;
+	}
+
+	// Get the data size of the transfer, 0 if not known
+	public int getDataSize() {
+		return map.getInt(4);
+	}
+
+	// Record the data size of the transfer
+	public void setDataSize(int data_size) {
+		if (getDataSize() != data_size) {
+			map.putInt(4, data_size);
+			dirty = true;
+		}
+	}
+
+	// Get the number of the end-of-file packet, -1 if not known
+	public int getEof() {
+		return map.getInt(12);
+	}
+
+	// Record the number of the end-of-file packet
+	public void setEof(int number) {
+		map.putInt(12, number);
+		dirty = true;
+	}
+
+	/**
+	 * Forces the output file to disk, then copies the packets recorded since
+	 * the last checkpoint into the journal and forces it to disk as well, if
+	 * anything has been recorded and it is due
+	 *
+	 * @param sink
+	 *            The output file
+	 * @param now
+	 *            The current time (System.nanoTime)
+	 * @throws IOException
+	 */
+	public void checkpoint(FileSink sink, long now) throws IOException {
+		if (dirty && now - last_checkpoint >= CHECKPOINT_NANOS) {
+			sink.force();
+			if (dirty_end > dirty_first) {
+				if (JOURNAL_HEADER_SIZE + bits.length > map.capacity()) {
+					map.force();
+					map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+							JOURNAL_HEADER_SIZE + bits.length);
+				}
+				map.put(JOURNAL_HEADER_SIZE + dirty_first, bits, dirty_first,
+						dirty_end - dirty_first);
+				dirty_first = Integer.MAX_VALUE;
+				dirty_end = 0;
+			}
+			map.force();
+			dirty = false;
+			last_checkpoint = now;
+		}
+	}
+
+	// Remove the journal once the file is complete
+	public void delete() throws IOException {
+		channel.close();
+		path.delete();
+	}
+
+	/**
+	 * Writes the answer to a resume query
+	 *
+	 * @param answer
+	 *            Array the answer is written into, ANSWER_SIZE long
+	 * @param from
+	 *            Number of the first packet the query asks about
+	 * @param data_size
+	 *            Data size of the transfer, 0 if not known
+	 * @return The length of the answer
+	 */
+	public int writeAnswer(byte[] answer, int from, int data_size) {
+		int eof = getEof();
+		int count = 0;
+		int next = -1;
+		int number = nextMissing(from);
+		while (eof == -1 || Utilities.seqLessThan(number, eof + 1)) {
+			if (count == MAX_RANGES) {
+				next = number;
+				break;
+			}
+			// Bits past the end of the bitmap are never set
+			int end = number + 1;
+			while ((eof == -1 || Utilities.seqLessThan(end, eof + 1))
+					&& !has(end) && ((end & 0xFFFFFFFFL) >>> 3) < bits.length) {
+				end++;
+			}
+			boolean open = eof == -1 && !has(end);
+			putRange(answer, count++, number, open ? -1 : end);
+			if (open) {
+				break;
+			}
+			number = nextMissing(end);
+		}
+		return writeAnswerHeader(answer, from, count, next, data_size);
+	}
+
+	/**
+	 * Answers a datagram received by an engine if it is a resume query,
+	 * without connecting the engine to the sender
+	 *
+	 * @param engine
+	 *            The receiver's engine
+	 * @param query
+	 *            The datagram in byte array form
+	 * @param length
+	 *            The length of the datagram
+	 * @param journal
+	 *            The flow's journal, or null if it keeps none
+	 * @param data_size
+	 *            Data size of the transfer, 0 if not known
+	 * @return True if the datagram was a resume query
+	 * @throws IOException
+	 */
+	public static boolean answer(TransportEngine engine, byte[] query,
+			int length, ReceiveJournal journal, int data_size)
+			throws IOException {
+		if (!isQuery(query, length)) {
+			return false;
+		}
+		int from = Utilities.getPacketNum(query);
+		byte[] answer = new byte[ANSWER_SIZE];
+		int answer_length;
+		if (journal != null) {
+			answer_length = journal.writeAnswer(answer, from, data_size);
+		} else {
+			// Nothing is known to have been written
+			putRange(answer, 0, from, -1);
+			answer_length = writeAnswerHeader(answer, from, 1, -1, data_size);
+		}
+		engine.sendTo(answer, answer_length, engine.getLastSource());
+		return true;
+	}
+
+	/**
+	 * Asks a flow of the receiver which packets it still needs
+	 *
+	 * @param socket
+	 *            Socket to ask through, no other thread may be receiving on
+	 *            it
+	 * @param ip
+	 *            IP address of the receiver
+	 * @param port
+	 *            Port number of the flow
+	 * @param timeout
+	 *            Time to wait for every answer in milliseconds
+	 * @return The missing packets, or null if the receiver did not answer
+	 *         and everything has to be sent
+	 * @throws IOException
+	 */
+	public static Missing query(DatagramSocket socket, InetAddress ip,
+			int port, int timeout) throws IOException {
+		byte[] query = new byte[Utilities.HEADER_SIZE];
+		byte[] answer = new byte[ANSWER_SIZE];
+		DatagramPacket sent = new DatagramPacket(query, query.length, ip, port);
+		DatagramPacket received = new DatagramPacket(answer, answer.length);
+		int previous_timeout = socket.getSoTimeout();
+		int[] firsts = new int[MAX_RANGES];
+		int[] ends = new int[MAX_RANGES];
+		int count = 0;
+		int data_size = 0;
+		int from = 0;
+
+		try {
+			socket.setSoTimeout(Math.max(1, timeout));
+			while (from != -1) {
+				Utilities.writeHeader(query, from, 0, false);
+				query[1] = Utilities.FLAG_PROBE | Utilities.FLAG_SACK;
+				boolean answered = false;
+				for (int x = 0; x < TRIES && !answered; x++) {
+					socket.send(sent);
+					try {
+						// Skip answers to earlier tries and stray probe
+						// answers
+						do {
+							received.setLength(answer.length);
+							socket.receive(received);
+							answered = isAnswer(answer, received.getLength())
+									&& Utilities.getPacketNum(answer) == from;
+						} while (!answered);
+					} catch (SocketTimeoutException e) {
+						// Lost, or the receiver does not keep a journal
+					}
+				}
+				if (!answered) {
+					return null;
+				}
+
+				int ranges = ((answer[6] & 0xFF) << 8) | (answer[7] & 0xFF);
+				if (count + ranges > firsts.length) {
+					firsts = Arrays.copyOf(firsts, 2 * (count + ranges));
+					ends = Arrays.copyOf(ends, 2 * (count + ranges));
+				}
+				for (int x = 0; x < ranges; x++) {
+					int offset = Utilities.HEADER_SIZE + 8 * x;
+					firsts[count] = Utilities.getSeq(answer, offset);
+					ends[count] = Utilities.getSeq(answer, offset + 4);
+					count++;
+				}
+				from = Utilities.getSeq(answer, 8);
+				data_size = Utilities.getSeq(answer, 12);
+			}
+		} finally {
+			socket.setSoTimeout(previous_timeout);
+		}
+		return new Missing(Arrays.copyOf(firsts, count), Arrays.copyOf(ends,
+				count), data_size);
+	}
+
+	/**
+	 * Checks whether a datagram is a resume query
+	 *
+	 * @param input
+	 *            A datagram in byte array form
+	 * @param length
+	 *            The length of the datagram
+	 * @return True if the datagram is a probe with FLAG_SACK set
+	 */
+	public static boolean isQuery(byte[] input, int length) {
+		return length >= Utilities.HEADER_SIZE
+				&& Utilities.isValidHeader(input)
+				&& (input[1] & Utilities.FLAG_ACK) == 0
+				&& Utilities.isProbe(input) && Utilities.isSack(input);
+	}
+
+	// Whether a datagram is the answer to a resume query
+	private static boolean isAnswer(byte[] input, int length) {
+		return length >= Utilities.HEADER_SIZE
+				&& Utilities.isValidHeader(input)
+				&& (input[1] & Utilities.FLAG_ACK) != 0
+				&& Utilities.isProbe(input) && Utilities.isSack(input)
+				&& length >= Utilities.HEADER_SIZE + 8
+						* (((input[6] & 0xFF) << 8) | (input[7] & 0xFF));
+	}
+
+	// Write the x-th range of missing packets into an answer
+	private static void putRange(byte[] answer, int x, int first, int end) {
+		Utilities.putSeq(answer, Utilities.HEADER_SIZE + 8 * x, first);
+		Utilities.putSeq(answer, Utilities.HEADER_SIZE + 8 * x + 4, end);
+	}
+
+	// Write the header of an answer and return its length
+	private static int writeAnswerHeader(byte[] answer, int from, int count,
+			int next, int data_size) {
+		answer[0] = (byte) Utilities.HEADER_VERSION;
+		answer[1] = Utilities.FLAG_ACK | Utilities.FLAG_PROBE
+				| Utilities.FLAG_SACK;
+		Utilities.putSeq(answer, 2, from);
+		answer[6] = (byte) (count >>> 8);
+		answer[7] = (byte) count;
+		Utilities.putSeq(answer, 8, next);
+		Utilities.putSeq(answer, 12, data_size);
+		return Utilities.HEADER_SIZE + 8 * count;
+	}
+}
@@ -14,30 +14,36 @@ public class Receiver1 {
 		String filename = argv[1];
 		DatagramSocket serverSocket = new DatagramSocket(port);
 
-		byte[] receiveData = new byte[1024];
+		byte[] receiveData = new byte[Utilities.MAX_PACKET_SIZE];
+		PacketCodec packet = new PacketCodec(receiveData);
+		DatagramPacket receivePacket = new DatagramPacket(receiveData,
+				receiveData.length);
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		FileSink sink = new FileSink(filename);
 		boolean endOfFile = false;
 
 		/* Continuously receive packets until end-of-file flag has been reached */
 		do {
-			DatagramPacket receivePacket = new DatagramPacket(receiveData,
-					receiveData.length);
+			receivePacket.setLength(receiveData.length);
 			serverSocket.receive(receivePacket);
 
 
-			if (receiveData[2] == 1) {
+			if (!packet.isValid(receivePacket.getLength())
+					|| PathProbe.answer(serverSocket, receivePacket)
+					|| !packet.isIntact(receivePacket.getLength())) {
+				continue;
+			}
+
+			if (packet.isEOF()) {
 				endOfFile = true;
-				receiveData = Utilities.cleanUpEOF(receiveData);
 			}
 
-			baos.write(Utilities.getData(receiveData));
+			sink.append(packet);
 
 		} while (endOfFile == false);
 
-		/* Once end-of-file flag has been reached write data to disk */
-		FileOutputStream writeToFile = new FileOutputStream(filename);
-		writeToFile.write(baos.toByteArray());
+		/* Data has been streamed to disk as it arrived */
+		sink.close();
 		serverSocket.close();
 	}
 }
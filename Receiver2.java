@@ -15,57 +15,59 @@ public class Receiver2 {
 		String filename = argv[1];
 		DatagramSocket serverSocket = new DatagramSocket(port);
 
-		byte[] receiveData = new byte[1024];
-		byte[] sendData = new byte[3];
+		byte[] receiveData = new byte[Utilities.MAX_PACKET_SIZE];
+		PacketCodec packet = new PacketCodec(receiveData);
+		DatagramPacket receivePacket = new DatagramPacket(receiveData,
+				receiveData.length);
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		// A single acknowledgment is rewritten for every packet
+		byte[] ackData = new byte[Utilities.ACK_SIZE];
+		PacketCodec ack = new PacketCodec(ackData);
+		DatagramPacket ackPacket = new DatagramPacket(ackData,
+				ackData.length);
+
+		FileSink sink = new FileSink(filename);
 		boolean eof = false;
 
 		int expected_number = 0;
 		do {
-			DatagramPacket receivePacket = new DatagramPacket(receiveData,
-					receiveData.length);
+			receivePacket.setLength(receiveData.length);
 			serverSocket.receive(receivePacket);
-			InetAddress src_ip = receivePacket.getAddress();
-			int src_port = receivePacket.getPort();
-			int packet_number = Utilities.bytesToInt(receiveData[0],
-					receiveData[1]);
+			if (!packet.isValid(receivePacket.getLength())
+					|| PathProbe.answer(serverSocket, receivePacket)
+					|| !packet.isIntact(receivePacket.getLength())) {
+				continue;
+			}
+			int packet_number = packet.getNumber();
+			ackPacket.setAddress(receivePacket.getAddress());
+			ackPacket.setPort(receivePacket.getPort());
 
-			if (receiveData[2] == 1) {
+			if (packet.isEOF()) {
 				eof = true;
-				receiveData = Utilities.cleanUpEOF(receiveData);
 			}
 
 			if (packet_number == expected_number) {
 
 				// Send acknowledgment back to sender
-				sendData[2] = (byte) 1;
-				sendData[0] = receiveData[0];
-				sendData[1] = receiveData[1];
-				DatagramPacket packet = new DatagramPacket(sendData,
-						sendData.length, src_ip, src_port);
-				serverSocket.send(packet);
+				ack.writeAck(packet_number, packet);
+				serverSocket.send(ackPacket);
 
-				// Write data to stream
+				// Write data to file
 				//System.out.println("Writing now! " + expected_number);
-				baos.write(Utilities.getData(receiveData));
+				sink.append(packet);
 				expected_number++;
 
 				// Make sure the last ACK was received
 				if (eof == true){
 					for(int x = 0; x < 20; x++){
-						serverSocket.send(packet);
+						serverSocket.send(ackPacket);
 					}
 				}
 				
-			} else if (packet_number < expected_number) {
+			} else if (Utilities.seqLessThan(packet_number, expected_number)) {
 				// Re-send old acknowledgment in case of packet loss
-				sendData[2] = (byte) 1;
-				sendData[0] = receiveData[0];
-				sendData[1] = receiveData[1];
-				DatagramPacket packet = new DatagramPacket(sendData,
-						sendData.length, src_ip, src_port);
-				serverSocket.send(packet);
+				ack.writeAck(packet_number, packet);
+				serverSocket.send(ackPacket);
 
 			} else {
 				// Ignore packets that ahead of the expected packet number
@@ -74,8 +76,7 @@ public class Receiver2 {
 			
 		} while (eof == false);
 
-		FileOutputStream writeToFile = new FileOutputStream(filename);
-		System.out.println("Writing to file!");
-		writeToFile.write(baos.toByteArray());
+		sink.close();
+		System.out.println("File written!");
 	}
 }
@@ -13,6 +13,12 @@ public class Receiver3 {
 	private static int PORT;
 	private static String FILENAME;
 	private static DatagramSocket SERVER_SOCKET;
+	private static int FEC_PACKETS = 1024;
+
+	// A single acknowledgment is rewritten for every packet
+	private static byte[] ack_buffer = new byte[Utilities.ACK_SIZE];
+	private static DatagramPacket ack = new DatagramPacket(ack_buffer,
+			ack_buffer.length);
 
 	public static void main(String argv[]) throws Exception {
 
@@ -20,80 +26,181 @@ public class Receiver3 {
 		FILENAME = argv[1];
 		SERVER_SOCKET = new DatagramSocket(PORT);
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		FileSink sink = new FileSink(FILENAME);
 		int expected_number = 0;
 		boolean eof = false;
 
+		// Coalesce the acknowledgments for in-order packets if asked to
+		DelayedAck delayed = null;
+		if (Utilities.hasFlag(argv, "-delack")) {
+			delayed = new DelayedAck(DelayedAck.ACK_EVERY,
+					DelayedAck.MAX_DELAY_NANOS);
+		}
+
+		// Created once the sender turns out to use forward error correction
+		FecDecoder decoder = null;
+
+		byte[] packet_buffer = new byte[Utilities.MAX_PACKET_SIZE];
+		PacketCodec codec = new PacketCodec(packet_buffer);
+		DatagramPacket packet = new DatagramPacket(packet_buffer,
+				packet_buffer.length);
+		// Whether the socket currently times out for a held back ack
+		boolean timing = false;
 		do {
-			byte[] packet_buffer = new byte[1024];
 			try {
-				DatagramPacket packet = new DatagramPacket(packet_buffer,
-						packet_buffer.length);
+				packet.setLength(packet_buffer.length);
+				if (delayed != null && delayed.isDue(System.nanoTime())) {
+					// Came due while other datagrams kept arriving
+					sendAck(expected_number, delayed.release(null));
+				}
+				boolean pending = delayed != null && delayed.isPending();
+				if (pending != timing) {
+					// Only touch the socket when an ack starts or stops being
+					// held back, and give up waiting once it is due
+					int timeout = 0;
+					if (pending) {
+						long due = delayed.nanosUntilDue(System.nanoTime());
+						timeout = (int) Math.max(1, (due + 999999) / 1000000);
+					}
+					SERVER_SOCKET.setSoTimeout(timeout);
+					timing = pending;
+				}
 				SERVER_SOCKET.receive(packet);
 
-				int packet_number = Utilities.getPacketNum(packet_buffer);
-				InetAddress src_ip = packet.getAddress();
-				int src_port = packet.getPort();
+				if (!codec.isValid(packet.getLength())
+						|| PathProbe.answer(SERVER_SOCKET, packet)
+						|| !codec.isIntact(packet.getLength())) {
+					continue;
+				}
+				ack.setAddress(packet.getAddress());
+				ack.setPort(packet.getPort());
 
-				// Clean up end-of-file packet and set eof flag
-				if (Utilities.isEOF(packet_buffer)) {
-						packet_buffer = Utilities.cleanUpEOF(packet_buffer);
+				if (codec.isParity()) {
+					if (decoder == null) {
+						decoder = new FecDecoder(FEC_PACKETS);
+					}
+					decoder.addParity(packet_buffer, packet.getLength());
+				} else if (decoder != null) {
+					decoder.addData(packet_buffer, packet.getLength());
+				}
+				if (decoder != null) {
+					/**
+					 * The decoder also keeps the packets that Go-Back-N
+					 * would discard, so once the expected packet is held,
+					 * whether received or rebuilt, carry on from there.
+					 */
+					byte[] held = decoder.get(expected_number);
+					if (held != null) {
+						System.arraycopy(held, 0, packet_buffer, 0,
+								held.length);
+					} else if (codec.isParity()) {
+						continue;
+					}
+				}
+
+				int packet_number = codec.getNumber();
+
+				// Set eof flag
+				if (codec.isEOF()) {
 						eof = true;
 					}
 
+				/**
+				 * Every acknowledgment is cumulative and names the next
+				 * expected packet, so a lost acknowledgment is covered by the
+				 * next one. Go-Back-N discards out-of-order packets, so the
+				 * selective bitmap is always empty.
+				 */
 				if (packet_number == expected_number) {
-					baos.write(Utilities.getData(packet_buffer));
-					SERVER_SOCKET.send(Utilities.createAckPacket(packet_number,
-							src_ip, src_port));
+					sink.append(codec);
+					expected_number++;
+
+					// Deliver the packets held by the decoder that follow
+					boolean drained = false;
+					byte[] next = null;
+					while (eof == false && decoder != null
+							&& (next = decoder.get(expected_number)) != null) {
+						sink.append(next);
+						expected_number++;
+						eof = Utilities.isEOF(next);
+						drained = true;
+					}
+					if (delayed != null && eof == false && drained == false
+							&& delayed.hold(packet_buffer) == false) {
+						// Hold the acknowledgment back for now
+						continue;
+					}
+					sendAck(expected_number, release(delayed, packet_buffer));
 					
 					// Make sure last packet is received
 					if (eof == true){
 						for(int x = 0; x < 20; x++){
-							SERVER_SOCKET.send(Utilities.createAckPacket(packet_number,src_ip, src_port));
+							SERVER_SOCKET.send(ack);
 						}
 					}
 
-					expected_number++;
-
-				} else if (packet_number < expected_number) {
-					// Re-send acknowledgment for previously accepted packet
-					SERVER_SOCKET.send(Utilities.createAckPacket(packet_number,
-							src_ip, src_port));
+				} else if (Utilities.seqLessThan(packet_number, expected_number)) {
+					// Re-send acknowledgment for previously accepted packets
+					sendAck(expected_number, release(delayed, packet_buffer));
 					eof = false;
 
 				} else {
 					// Re-send acknowledgment for previous expected packet
-					SERVER_SOCKET.send(Utilities.createAckPacket(expected_number - 1,
-							src_ip, src_port));
+					sendAck(expected_number, release(delayed, packet_buffer));
 					eof = false;
 
 				}
 
 
+			} catch (SocketTimeoutException e) {
+				// Nothing arrived in time, send the held back acknowledgment
+				if (delayed != null && delayed.isPending()) {
+					sendAck(expected_number, delayed.release(null));
+				}
+
 			} catch (Exception e) {
 
 			}
 
 		} while (eof == false);
+		SERVER_SOCKET.setSoTimeout(0);
 
-		FileOutputStream writeToFile = new FileOutputStream(FILENAME);
-		System.out.println("WRITING TO FILE!");
-		writeToFile.write(baos.toByteArray());
+		sink.close();
+		System.out.println("FILE WRITTEN!");
 
-		byte[] packet_buffer = new byte[1024];
 		do {
-			DatagramPacket packet = new DatagramPacket(packet_buffer,
-						packet_buffer.length);
+			packet.setLength(packet_buffer.length);
 			SERVER_SOCKET.receive(packet);
+			if (PathProbe.answer(SERVER_SOCKET, packet) || codec.isParity()) {
+				// Parity packets are never acknowledged
+				continue;
+			}
 
-			int packet_number = Utilities.getPacketNum(packet_buffer);
-			InetAddress src_ip = packet.getAddress();
-			int src_port = packet.getPort();
-
-			SERVER_SOCKET.send(Utilities.createAckPacket(packet_number,
-							src_ip, src_port));
+			ack.setAddress(packet.getAddress());
+			ack.setPort(packet.getPort());
+			sendAck(expected_number, packet_buffer);
 		} while (true);
 
 	}
+
+	/**
+	 * Sends a cumulative acknowledgment to the last sender heard from
+	 * 
+	 * @param cumulative
+	 *            Number of the next expected packet
+	 * @param packet
+	 *            The packet whose send time the acknowledgment echoes
+	 * @throws IOException
+	 */
+	private static void sendAck(int cumulative, byte[] packet)
+			throws IOException {
+		Utilities.writeSack(ack_buffer, cumulative, packet);
+		SERVER_SOCKET.send(ack);
+	}
+
+	// Release a held back acknowledgment, which the next one sent covers
+	private static byte[] release(DelayedAck delayed, byte[] packet) {
+		return delayed == null ? packet : delayed.release(packet);
+	}
 }
 
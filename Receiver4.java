@@ -3,37 +3,105 @@
  * @author Nicholas Swafford <s0827481 @ sms.ed.ac.uk>
  * @since 19/02/2012
  * 
- * I am aware that the implementation of this receiver could have easily been
- * done without an additional thread. I did not put the PacketReceptor class
- * in its own file because Receiver4 is the only program that uses this particular
- * strain of receptor.
+ * The receiver runs on a single thread. The TransportEngine wakes it up
+ * whenever packets arrive, and in-order data is written to disk straight
+ * away. I did not put the PacketReceptor class in its own file because
+ * Receiver4 is the only program that uses this particular strain of receptor.
+ *
+ * With -streams N the sender splits the file into N stripes and sends them
+ * over N parallel flows (see Sender4). The receiver then listens on ports
+ * PORT to PORT + N - 1, one thread each, and every flow places its packets
+ * straight at their offset in the shared file.
+ *
+ * With -resume every flow keeps a ReceiveJournal of the packets it has
+ * written, which implies direct placement. A receiver restarted after an
+ * interruption keeps the partial file, and a sender restarted with -resume
+ * only sends what the journals do not have. The journals are removed once
+ * the file is complete.
+ *
+ * With -delta the receiver takes delta transfers against the version of
+ * the output file it already holds, which is moved aside as the basis and
+ * signed before the first packet is accepted (see BlockSignatures).
+ *
+ * A Receiver4 instance is a single flow. ReceiverServer also runs one per
+ * upload, sharing its engine and buffer pool between them.
  *
  */
 
 import java.io.*;
-import java.net.*;
-import java.util.ArrayList;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class Receiver4 {
+public class Receiver4 implements Runnable {
 
+	// Large enough for any datagram size the sender settles on
+	private static int PACKET_SIZE = Utilities.MAX_PACKET_SIZE;
+	private static long LINGER_NANOS = 2000000000L;
 	private static int WINDOW;
 	private static int PORT;
 	private static String FILENAME;
-	private static DatagramSocket serverSocket;
-
-	public static class PacketReceptor implements Runnable {
-		private ArrayList<byte[]> buffer;
-		private ArrayList<byte[]> write_buffer;
+	private static FileSink sink;
+	private static AtomicInteger incomplete;
+	private static AtomicInteger learned_size;
+	private static ReceiveJournal[] journals;
+	private static BlockSignatures signatures;
+
+	// State of a single flow
+	private int stream;
+	private int streams;
+	private TransportEngine engine;
+	private SocketAddress peer;
+	private BufferPool pool;
+	private DelayedAck delayed;
+	private FecDecoder decoder;
+	private PacketReceptor receptor;
+	private ReceiveJournal journal;
+	private AtomicInteger data_size;
+	private Exception error;
+
+	public class PacketReceptor {
+		private ReorderWindow buffer;
+		private FileSink sink;
 		private int start_window;
 		private int end_window;
-		private boolean cont = true;
+		private byte[] ack_buffer;
+		private boolean complete = false;
 
-		public PacketReceptor(ArrayList<byte[]> buffer, int start_window,
-				int end_window) throws Exception {
+		/**
+		 * Only used in direct placement mode, where packets are written to
+		 * their offset in the file as soon as they are accepted. The window
+		 * then only needs to remember which packets have arrived.
+		 */
+		private BitSet received;
+		private int slots;
+		private int last_number;
+		private boolean eof_received = false;
+
+		/**
+		 * Constructor for a receptor that holds out-of-order packets until
+		 * they can be appended to the file
+		 * 
+		 * @param buffer
+		 *            Window buffer for out-of-order packets
+		 * @param start_window
+		 *            Number of the first packet in the window
+		 * @param end_window
+		 *            Number of the last packet in the window
+		 * @param sink
+		 *            File that in-order data is written to
+		 * @throws Exception
+		 */
+		public PacketReceptor(ReorderWindow buffer, int start_window,
+				int end_window, FileSink sink) throws Exception {
 
 			this.buffer = buffer;
-			this.write_buffer = new ArrayList<byte[]>();
-			if (start_window > end_window) {
+			this.sink = sink;
+			this.ack_buffer = new byte[Utilities.ACK_SIZE + Math.min(
+					Utilities.MAX_SACK_BYTES, (end_window - start_window + 7) / 8)];
+			if (Utilities.seqLessThan(end_window, start_window)) {
 				throw new Exception();
 			} else {
 				this.start_window = start_window;
@@ -41,87 +109,188 @@ public class Receiver4 {
 			}
 		}
 
-		public void run() {
-			byte[] packet_buffer;
-			do {
-				packet_buffer = new byte[1024];
-				try {
-					DatagramPacket packet = new DatagramPacket(packet_buffer,
-							packet_buffer.length);
-					serverSocket.receive(packet);
+		/**
+		 * Constructor for a direct placement receptor
+		 * 
+		 * @param start_window
+		 *            Number of the first packet in the window
+		 * @param end_window
+		 *            Number of the last packet in the window
+		 * @param sink
+		 *            File that accepted packets are written to
+		 * @throws Exception
+		 */
+		public PacketReceptor(int start_window, int end_window, FileSink sink)
+				throws Exception {
+			this(null, start_window, end_window, sink);
+			this.slots = end_window - start_window + 1;
+			this.received = new BitSet(slots);
+			if (journal != null && journal.getEof() != -1) {
+				// The end-of-file packet was written before the interruption
+				last_number = journal.getEof();
+				eof_received = true;
+				complete = Utilities.seqLessThan(last_number, start_window);
+			}
+		}
+
+		/**
+		 * Handles a single packet received by the transport engine
+		 * 
+		 * @param packet_buffer
+		 *            The packet in byte array form
+		 * @param length
+		 *            The length of the received datagram
+		 * @return True if the window buffer now holds on to packet_buffer, in
+		 *         which case it must not be reused by the caller
+		 * @throws IOException
+		 */
+		public boolean handlePacket(byte[] packet_buffer, int length)
+				throws IOException {
+			if (length < Utilities.HEADER_SIZE
+					|| !Utilities.isValidHeader(packet_buffer)) {
+				return false;
+			}
+
+			int packet_number = Utilities.getPacketNum(packet_buffer);
 
-					int packet_number = Utilities.getPacketNum(packet_buffer);
-					InetAddress src_ip = packet.getAddress();
-					int src_port = packet.getPort();
+			/**
+			 * Every acknowledgment is cumulative and also lists the packets
+			 * held out of order, so a lost acknowledgment is repaired by any
+			 * later one.
+			 */
+			if (Utilities.seqLessThan(packet_number, start_window)) {
+				// Send acknowledgment for previously received packets
+				sendAck(packet_buffer);
+
+			} else if (Utilities.seqLessThan(end_window, packet_number)) {
+				// Discard packets beyond the current window
+
+			} else if (received != null) {
+				// Write the packet straight to its place in the file
+				int previous_start = start_window;
+				placePacket(packet_buffer, packet_number);
+				if (start_window - previous_start == 1) {
+					sendInOrderAck(packet_buffer);
+				} else {
+					// Out of order, duplicate or a filled gap
+					sendAck(packet_buffer);
+				}
 
-					if (Utilities.isEOF(packet_buffer)) {
-						packet_buffer = Utilities.cleanUpEOF(packet_buffer);
+			} else if (packet_number == start_window) {
+				// Accept the packet and write it to the file
+				deliver(packet_buffer);
+				adjustWindowBy(1);
+
+				// Write any packets in the window buffer that are next in
+				// line as well
+				byte[] write = popPacket(start_window);
+				if (write == null) {
+					sendInOrderAck(packet_buffer);
+				} else {
+					while (write != null) {
+						deliver(write);
+						pool.release(write);
+						adjustWindowBy(1);
+						write = popPacket(start_window);
 					}
+					// A gap has been filled, tell the sender right away
+					sendAck(packet_buffer);
+				}
 
-					/**
-					 * Packet management is carried out within this thread. It
-					 * might have been more efficient to implement it in the
-					 * main program.
-					 */
-					if (packet_number < start_window) {
-						// Send acknowledgment for previously received packets
-						serverSocket.send(Utilities.createAckPacket(
-								packet_number, src_ip, src_port));
-
-					} else if (packet_number > end_window) {
-						// Discard packets beyond the current window
-						continue;
-
-					} else if (packet_number == start_window) {
-						// Accept the packet and add it to the write buffer
-						synchronized (write_buffer) {
-							write_buffer.add(packet_buffer);
-						}
+			} else if (checkForPacket(packet_number) == true) {
+				// Filter out duplicate packets, but acknowledge them again in
+				// case the first acknowledgment was lost
+				sendAck(packet_buffer);
 
-						adjustWindowBy(1);
-						serverSocket.send(Utilities.createAckPacket(
-								packet_number, src_ip, src_port));
-
-						// Add any packets in the window buffer that are next in
-						// line to the write buffer
-						boolean check = false;
-						do {
-							byte[] write = popPacket(start_window);
-							if (write != null) {
-								write_buffer.add(write);
-								adjustWindowBy(1);
-								check = true;
-							} else {
-								check = false;
-							}
-						} while (check);
-
-					} else if (checkForPacket(packet_number) == true) {
-						// Filter out duplicate packets
-						continue;
-
-					} else {
-						// Packet is within the window but not next in line
-						// Accept the packet and add it to the window buffer
-						addPacket(packet_buffer);
-						serverSocket.send(Utilities.createAckPacket(
-								packet_number, src_ip, src_port));
+			} else {
+				// Packet is within the window but not next in line
+				// Accept the packet and add it to the window buffer
+				addPacket(packet_buffer);
+				sendAck(packet_buffer);
+				return true;
 
-					}
+			}
+			return false;
+		}
 
-				} catch (Exception e) {
+		// Append an in-order packet to the file
+		private void deliver(byte[] packet) throws IOException {
+			sink.append(packet);
+			if (Utilities.isEOF(packet)) {
+				complete = true;
+			}
+		}
+
+		/**
+		 * Sends a selective acknowledgment for the current window through the
+		 * transport engine
+		 * 
+		 * @param packet
+		 *            The received packet that triggered the acknowledgment
+		 * @throws IOException
+		 */
+		private void sendAck(byte[] packet) throws IOException {
+			if (delayed != null) {
+				packet = delayed.release(packet);
+			}
+			int length = Utilities.writeSack(ack_buffer, start_window, packet);
+			if (hasOutOfOrder()) {
+				for (int x = 1; Utilities.seqLessThan(start_window + x,
+						end_window + 1); x++) {
+					if (isHeld(start_window + x)) {
+						length = Utilities.addSackBit(ack_buffer, length, x - 1);
+					}
 				}
+			}
+			sendToPeer(ack_buffer, length);
+		}
+
+		/**
+		 * Acknowledges a packet that arrived in order. In ack coalescing mode
+		 * the acknowledgment is held back unless it is due or the packet
+		 * completes the file.
+		 * 
+		 * @param packet
+		 *            The packet in byte array form
+		 * @throws IOException
+		 */
+		private void sendInOrderAck(byte[] packet) throws IOException {
+			if (delayed == null || complete || hasOutOfOrder()
+					|| delayed.hold(packet)) {
+				sendAck(packet);
+			}
+		}
+
+		// Send the held back acknowledgment once its delay has run out
+		public void flushAck(long now) throws IOException {
+			if (delayed != null && delayed.isDue(now)) {
+				sendAck(null);
+			}
+		}
+
+		// Whether any packet is held past a gap in the window
+		private boolean hasOutOfOrder() {
+			if (received != null) {
+				return !received.isEmpty();
+			}
+			return buffer.size() > 0;
+		}
 
-			} while (cont);
+		// Whether a packet in the window has already been received
+		private boolean isHeld(int number) {
+			if (received != null) {
+				return received.get(slotOf(number)) || isJournaled(number);
+			}
+			return buffer.contains(number);
 		}
 
 		/**
-		 * Synchronizes adding packets to the window buffer
+		 * Adds a packet to the window buffer
 		 * 
 		 * @param packet
 		 */
-		public synchronized void addPacket(byte[] packet) {
-			this.buffer.add(packet);
+		public void addPacket(byte[] packet) {
+			this.buffer.put(Utilities.getPacketNum(packet), packet);
 		}
 
 		/**
@@ -132,14 +301,8 @@ public class Receiver4 {
 		 *            The packet number of the packet you want to pop
 		 * @return The popped packet if it exists, null otherwise
 		 */
-		public synchronized byte[] popPacket(int number) {
-			if (checkForPacket(number) == true) {
-				byte[] packet = getByNumber(number);
-				this.buffer.remove(packet);
-				return packet;
-			} else {
-				return null;
-			}
+		public byte[] popPacket(int number) {
+			return this.buffer.take(number);
 		}
 
 		/**
@@ -150,13 +313,8 @@ public class Receiver4 {
 		 *            The number of the packet you are searching for
 		 * @return Boolean dependent on the packet's presence
 		 */
-		public synchronized boolean checkForPacket(int number) {
-			for (byte[] b : buffer) {
-				if (Utilities.getPacketNum(b) == number) {
-					return true;
-				}
-			}
-			return false;
+		public boolean checkForPacket(int number) {
+			return this.buffer.contains(number);
 		}
 
 		/**
@@ -166,57 +324,119 @@ public class Receiver4 {
 		 *            The number of the packet you are searching for
 		 * @return The first packet to match the given number, otherwise null
 		 */
-		public synchronized byte[] getByNumber(int number) {
-			for (byte[] b : buffer) {
-				if (Utilities.getPacketNum(b) == number) {
-					return b;
-				}
-			}
-			return null;
+		public byte[] getByNumber(int number) {
+			return this.buffer.get(number);
 		}
 
 		/**
-		 * Pops the write buffer to alleviate the receptor thread and to write
-		 * the data to file. The write buffer is cleared after this method is
-		 * called.
+		 * Writes a packet straight to its offset in the file and slides the
+		 * window over every packet that has become contiguous
 		 * 
-		 * @return Copy of the write buffer
+		 * @param packet
+		 *            The packet in byte array form
+		 * @param number
+		 *            The packet's number
+		 * @return False if the packet had already been received
+		 * @throws IOException
 		 */
-		public synchronized ArrayList<byte[]> popWriteBuffer() {
-			ArrayList<byte[]> output = new ArrayList<byte[]>();
-			synchronized (write_buffer) {
-				for (byte[] x : write_buffer) {
-					output.add(x);
+		public boolean placePacket(byte[] packet, int number)
+				throws IOException {
+			if (received.get(slotOf(number)) || isJournaled(number)) {
+				return false;
+			}
+			boolean first = number == 0 && stream == 0;
+			if (data_size.get() == 0 && (first || !Utilities.isEOF(packet))) {
+				/**
+				 * Only the last packet of the file can be short, so the
+				 * first packet of the file, or any packet that does not end
+				 * a stripe, tells the datagram size the sender settled on.
+				 * If the first packet is also the last, every other stripe
+				 * is empty and the size does not matter.
+				 */
+				data_size.compareAndSet(0, Utilities.getDataLength(packet));
+			}
+			int size = data_size.get();
+			if (size == 0 && Utilities.getDataLength(packet) > 0) {
+				// The offset of this packet depends on a size not yet known,
+				// leave it to a retransmission
+				return false;
+			}
+			sink.writeAt(packet, Utilities.fileOffset(number, size) * streams
+					+ stream * (long) size);
+			received.set(slotOf(number));
+			if (journal != null) {
+				journal.setDataSize(size);
+				journal.mark(number);
+			}
+
+			if (Utilities.isEOF(packet)) {
+				last_number = number;
+				eof_received = true;
+				if (journal != null) {
+					journal.setEof(number);
 				}
-				write_buffer.clear();
 			}
-			return output;
+
+			// Packets written before an interruption count as received
+			while (received.get(slotOf(start_window))
+					|| isJournaled(start_window)) {
+				received.clear(slotOf(start_window));
+				if (eof_received && start_window == last_number) {
+					complete = true;
+				}
+				adjustWindowBy(1);
+			}
+			return true;
+		}
+
+		// Whether a packet was written before the transfer was interrupted
+		private boolean isJournaled(int number) {
+			return journal != null && journal.has(number);
+		}
+
+		// Position of a packet number in the received bitmap
+		private int slotOf(int number) {
+			return Integer.remainderUnsigned(number, slots);
+		}
+
+		// Whether every packet up to the end-of-file has been written
+		public boolean isComplete() {
+			return complete;
 		}
 
 		// Adjust current window by the specified value
-		public synchronized void adjustWindowBy(int val) {
+		public void adjustWindowBy(int val) {
 			this.start_window += val;
 			this.end_window += val;
 
 		}
 
-		// Returns the buffer so that the file can be written to memory
-		public synchronized ArrayList<byte[]> returnBuffer() {
+		// Returns the window buffer
+		public ReorderWindow returnBuffer() {
 			return this.buffer;
 		}
 
 		// Clear buffer to avoid size issues
-		public synchronized void clearBuffer() {
+		public void clearBuffer() {
 			buffer.clear();
-		}
-		
-		// Ends the do-while loop in run method
-		public synchronized void stop(){
-			this.cont = false;
 		}
 
+		// Return every packet held out of order to the buffer pool
+		public void releaseBuffer() {
+			if (buffer == null) {
+				return;
+			}
+			for (int x = start_window; Utilities.seqLessThan(x,
+					end_window + 1); x++) {
+				byte[] packet = buffer.take(x);
+				if (packet != null) {
+					pool.release(packet);
+				}
+			}
+		}
+
 		// Get the value for the start of the window
-		public synchronized int getSOW(){
+		public int getSOW(){
 			return this.start_window;
 		}
 	}
@@ -226,46 +446,335 @@ public class Receiver4 {
 		PORT = Integer.parseInt(argv[0]);
 		FILENAME = argv[1];
 		WINDOW = Integer.parseInt(argv[2]);
-		serverSocket = new DatagramSocket(PORT);
+		int streams = Integer.parseInt(Utilities.getOption(argv, "-streams",
+				"1"));
+		File basis = null;
+		if (Utilities.hasFlag(argv, "-delta")) {
+			basis = keepBasis(argv, streams);
+			signatures = BlockSignatures.compute(basis == null ? null : basis
+					.getPath());
+		}
+		sink = new FileSink(FILENAME, Utilities.hasFlag(argv, "-resume"));
+		if (signatures != null) {
+			sink.setDelta(basis);
+		}
+		incomplete = new AtomicInteger(streams);
+		learned_size = new AtomicInteger(0);
+		journals = new ReceiveJournal[streams];
+
+		Receiver4[] flows = new Receiver4[streams];
+		Thread[] threads = new Thread[streams];
+		for (int x = 0; x < streams; x++) {
+			flows[x] = new Receiver4(argv, x, streams);
+			threads[x] = new Thread(flows[x]);
+			threads[x].start();
+		}
+		for (int x = 0; x < streams; x++) {
+			threads[x].join();
+			if (flows[x].error != null) {
+				throw flows[x].error;
+			}
+		}
+	}
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		boolean eof = false;
+	/**
+	 * Constructor for a single flow of the transfer
+	 * 
+	 * @param argv
+	 *            The command line, for the optional flags
+	 * @param stream
+	 *            Index of the stripe this flow receives
+	 * @param streams
+	 *            Number of stripes the file is split into
+	 * @throws Exception
+	 */
+	public Receiver4(String argv[], int stream, int streams) throws Exception {
+		this(TransportEngine.bind(PORT + stream), null, new BufferPool(
+				PACKET_SIZE, 2 * (WINDOW + 1)), sink, learned_size,
+				openJournal(argv, stream, streams), argv, stream, streams);
+		journals[stream] = journal;
+	}
+
+	/**
+	 * Constructor for a session of the receiver server, which shares the
+	 * server's engine and buffer pool. The server hands the session every
+	 * datagram from its peer.
+	 * 
+	 * @param engine
+	 *            The server's engine, which is not connected
+	 * @param peer
+	 *            Address of the sender of this upload
+	 * @param pool
+	 *            The server's buffer pool
+	 * @param sink
+	 *            File that the upload is written to
+	 * @param argv
+	 *            The server's command line, for the optional flags
+	 * @throws Exception
+	 */
+	public Receiver4(TransportEngine engine, SocketAddress peer,
+			BufferPool pool, FileSink sink, String argv[]) throws Exception {
+		this(engine, peer, pool, sink, new AtomicInteger(0), null, argv, 0, 1);
+	}
+
+	private Receiver4(TransportEngine engine, SocketAddress peer,
+			BufferPool pool, FileSink sink, AtomicInteger data_size,
+			ReceiveJournal journal, String argv[], int stream, int streams)
+			throws Exception {
+		this.data_size = data_size;
+		this.journal = journal;
+		if (journal != null && journal.getDataSize() > 0) {
+			// Packets must land where the interrupted transfer put them
+			data_size.compareAndSet(0, journal.getDataSize());
+		}
+		this.stream = stream;
+		this.streams = streams;
+		this.engine = engine;
+		this.peer = peer;
+		this.pool = pool;
+		if (Utilities.hasFlag(argv, "-delack")) {
+			// Coalesce the acknowledgments for in-order packets
+			delayed = new DelayedAck(DelayedAck.ACK_EVERY,
+					DelayedAck.MAX_DELAY_NANOS);
+		}
 
-		ArrayList<byte[]> packet_buffer = new ArrayList<byte[]>();
-		PacketReceptor receptor = new PacketReceptor(packet_buffer, 0, WINDOW);
-		Thread receiver = new Thread(receptor);
-		receiver.start();
+		if (journal != null) {
+			// Start the window at the first packet the journal is missing
+			int start = journal.firstMissing();
+			receptor = new PacketReceptor(start, start + WINDOW, sink);
+		} else if (streams > 1 || Utilities.hasFlag(argv, "-direct")) {
+			// Direct placement: every packet is written to its offset on
+			// arrival, which stripes can only be written with
+			receptor = new PacketReceptor(0, WINDOW, sink);
+		} else {
+			receptor = new PacketReceptor(new ReorderWindow(WINDOW + 1), 0,
+					WINDOW, sink);
+		}
+	}
 
+	/**
+	 * Opens the journal of a flow if the receiver resumes interrupted
+	 * transfers
+	 * 
+	 * @param argv
+	 *            The command line, for the optional flags
+	 * @param stream
+	 *            Index of the stripe the flow receives
+	 * @param streams
+	 *            Number of stripes the file is split into
+	 * @return The journal, or null without -resume
+	 * @throws IOException
+	 */
+	private static ReceiveJournal openJournal(String argv[], int stream,
+			int streams) throws IOException {
+		if (!Utilities.hasFlag(argv, "-resume")) {
+			return null;
+		}
+		return new ReceiveJournal(getJournalName(stream, streams), streams);
+	}
+
+	// Get the path of a flow's journal
+	private static String getJournalName(int stream, int streams) {
+		return FILENAME + ".journal" + (streams > 1 ? "." + stream : "");
+	}
+
+	/**
+	 * Moves the version of the output file the receiver already holds aside,
+	 * as the basis that a delta transfer is rebuilt from
+	 * 
+	 * @param argv
+	 *            The command line, for the optional flags
+	 * @param streams
+	 *            Number of stripes the file is split into
+	 * @return The basis, or null if there is no old version
+	 * @throws IOException
+	 */
+	private static File keepBasis(String argv[], int streams)
+			throws IOException {
+		File basis = new File(FILENAME + ".basis");
+		if (Utilities.hasFlag(argv, "-resume")
+				&& new File(getJournalName(0, streams)).exists()) {
+			// The output file is the interrupted new version, the basis was
+			// moved aside when the transfer first started
+			return basis.exists() ? basis : null;
+		}
+		File old = new File(FILENAME);
+		if (old.exists()) {
+			Files.move(old.toPath(), basis.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			return basis;
+		}
+		basis.delete();
+		return null;
+	}
+
+	/**
+	 * Sets the window size, for flows that are not started through main()
+	 * 
+	 * @param window
+	 *            Number of packets the window spans
+	 */
+	public static void setWindow(int window) {
+		WINDOW = window;
+	}
+
+	// Run the flow on its own thread
+	public void run() {
+		try {
+			receive();
+		} catch (Exception e) {
+			error = e;
+		}
+	}
+
+	/**
+	 * Receives the flow's stripe of the file
+	 * 
+	 * @throws IOException
+	 */
+	private void receive() throws IOException {
 		/**
-		 * Checks to the write buffer in the receptor thread can be managed
-		 * through the introduction of a thread sleep within this loop
+		 * Once the file is complete the receiver lingers for a while and
+		 * keeps acknowledging retransmissions, so that the sender learns
+		 * about the last packets even if their first acknowledgments were
+		 * lost.
 		 */
-		ArrayList<byte[]> write_to_baos = new ArrayList<byte[]>();
+		byte[] packet_buffer = pool.take();
+		boolean written = false;
+		long last_heard = System.nanoTime();
 		do {
+			long wait = -1;
+			if (written) {
+				wait = Math.max(1, LINGER_NANOS
+						- (System.nanoTime() - last_heard));
+			}
+			if (delayed != null && delayed.isPending()) {
+				// Wake up in time to send the held back acknowledgment
+				long due = delayed.nanosUntilDue(System.nanoTime());
+				wait = wait < 0 ? due : Math.min(wait, due);
+			}
+			engine.await(wait);
+
+			int length = engine.receive(packet_buffer);
+			while (length >= 0) {
+				last_heard = System.nanoTime();
+				if (ReceiveJournal.answer(engine, packet_buffer, length,
+						journal, data_size.get())
+						|| BlockSignatures.answer(engine, packet_buffer,
+								length, signatures)
+						|| PathProbe.answer(engine, packet_buffer, length)) {
+					// The sender is still asking where to resume, fetching
+					// signatures or settling on its datagram size
+					length = engine.receive(packet_buffer);
+					continue;
+				}
+				if (!engine.isConnected()) {
+					// Only accept packets from the first sender from now on
+					engine.connectTo(engine.getLastSource());
+				}
+				if (handleDatagram(packet_buffer, length)) {
+					packet_buffer = pool.take();
+				}
+				length = engine.receive(packet_buffer);
+			}
+			receptor.flushAck(System.nanoTime());
+
+			if (receptor.isComplete() && !written) {
+				if (incomplete.decrementAndGet() == 0) {
+					// This was the last flow to finish its stripe
+					sink.close();
+					for (ReceiveJournal finished : journals) {
+						if (finished != null) {
+							finished.delete();
+						}
+					}
+					System.out.println("Transmission complete! File written.");
+				}
+				written = true;
+			} else if (journal != null && !written) {
+				journal.checkpoint(sink, System.nanoTime());
+			}
 
-			/**
-			 * Pop the write buffer from the receptor thread so that the main
-			 * thread can write the data to memory
-			 */
+		} while (!written || System.nanoTime() - last_heard < LINGER_NANOS);
 
-			write_to_baos = receptor.popWriteBuffer();
+		engine.close();
+	}
 
-			for (byte[] x : write_to_baos) {
-				//IF WINDOW IS LARGER THAN NUM OF EOF
-				if(Utilities.isEOF(x)){
-					if(receptor.getSOW() > Utilities.getPacketNum(x)){
-						eof = true;
-					}
-				}
-				baos.write(Utilities.getData(x));
+	/**
+	 * Handles a single datagram from the flow's sender, data or parity
+	 * 
+	 * @param packet_buffer
+	 *            The datagram in byte array form
+	 * @param length
+	 *            The length of the datagram
+	 * @return True if the flow now holds on to packet_buffer, in which case
+	 *         it must not be reused by the caller
+	 * @throws IOException
+	 */
+	public boolean handleDatagram(byte[] packet_buffer, int length)
+			throws IOException {
+		if (!Utilities.isIntact(packet_buffer, length)) {
+			// Corrupted, drop it unacknowledged so that it is sent again
+			return false;
+		}
+		if (Utilities.isParity(packet_buffer)) {
+			if (decoder == null) {
+				// The sender uses forward error correction
+				decoder = new FecDecoder(4 * (WINDOW + 1));
 			}
-			
-		} while (eof == false);
-
-		receptor.stop();
+			recover(receptor, decoder.addParity(packet_buffer, length));
+			return false;
+		}
+		boolean held = receptor.handlePacket(packet_buffer, length);
+		if (decoder != null) {
+			recover(receptor, decoder.addData(packet_buffer, length));
+		}
+		return held;
+	}
+
+	// Send the held back acknowledgment once its delay has run out
+	public void flushAck(long now) throws IOException {
+		receptor.flushAck(now);
+	}
+
+	// Time in nanoseconds until a held back acknowledgment is due, or -1
+	public long nanosUntilAckDue(long now) {
+		return delayed == null ? -1 : delayed.nanosUntilDue(now);
+	}
+
+	// Whether every packet up to the end-of-file has been written
+	public boolean isComplete() {
+		return receptor.isComplete();
+	}
+
+	// Return the flow's held packets to the pool once it is given up on
+	public void releaseBuffers() {
+		receptor.releaseBuffer();
+	}
 
-		FileOutputStream writeToFile = new FileOutputStream(FILENAME);
-		System.out.println("Transmission complete! Writing to file...");
-		writeToFile.write(baos.toByteArray());
+	// Send a datagram to the flow's sender
+	private void sendToPeer(byte[] data, int length) throws IOException {
+		if (peer == null) {
+			engine.send(data, length);
+		} else {
+			engine.sendTo(data, length, peer);
+		}
+	}
+
+	/**
+	 * Hands a packet rebuilt by the error correction to the receptor as if
+	 * it had been received
+	 * 
+	 * @param receptor
+	 *            The packet receptor
+	 * @param rebuilt
+	 *            The rebuilt packet, or null if none could be rebuilt
+	 * @throws IOException
+	 */
+	private void recover(PacketReceptor receptor, byte[] rebuilt)
+			throws IOException {
+		if (rebuilt != null) {
+			receptor.handlePacket(rebuilt, rebuilt.length);
+		}
 	}
 }
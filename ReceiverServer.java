@@ -0,0 +1,198 @@
+/**
+ *
+ * Long-running receiver that takes any number of concurrent uploads on a
+ * single port, so that a new transfer does not have to wait for a JVM to
+ * start. Uploads are told apart by the address they come from, and every
+ * upload gets a session of its own: a Receiver4 flow with its own window,
+ * acknowledgments and output file.
+ *
+ * All sessions are driven by one thread, which waits on the shared engine
+ * and hands every datagram to the session of its sender. A session lingers
+ * like Receiver4 once its file is complete, then it is forgotten. A session
+ * whose sender falls silent before the file is complete is given up on
+ * after IDLE_NANOS, and its partial file is deleted. So is the file of an
+ * upload that fails, whether while it is received or when it is closed.
+ *
+ * Only a packet from the first window of a transfer starts a session, so
+ * that a late retransmission for an upload that has already been forgotten
+ * is dropped rather than taken for a new upload.
+ *
+ * Usage: ReceiverServer <port> <directory> <window> [-delack] [-direct]
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+
+public class ReceiverServer {
+	// Large enough for any datagram size the senders settle on
+	private static int PACKET_SIZE = Utilities.MAX_PACKET_SIZE;
+	private static long LINGER_NANOS = 2000000000L;
+	private static long IDLE_NANOS = 60000000000L;
+	private static int MAX_SESSIONS = 1024;
+
+	public static class Session {
+		private Receiver4 flow;
+		private FileSink sink;
+		private String filename;
+		private long last_heard;
+		private boolean written;
+
+		/**
+		 * Constructor for Session
+		 *
+		 * @param flow
+		 *            The flow receiving the upload
+		 * @param sink
+		 *            File that the upload is written to
+		 * @param filename
+		 *            Path of that file
+		 */
+		public Session(Receiver4 flow, FileSink sink, String filename) {
+			this.flow = flow;
+			this.sink = sink;
+			this.filename = filename;
+			this.last_heard = System.nanoTime();
+			this.written = false;
+		}
+
+		// Whether the session has lingered, or been idle, long enough to be
+		// forgotten
+		public boolean isExpired(long now) {
+			return now - last_heard >= getTimeout();
+		}
+
+		// Time in nanoseconds until the session next needs attention, or -1
+		public long nanosUntilDue(long now) {
+			long wait = flow.nanosUntilAckDue(now);
+			long expiry = Math.max(0, getTimeout() - (now - last_heard));
+			return wait < 0 ? expiry : Math.min(wait, expiry);
+		}
+
+		// Time a session is kept without hearing from its sender
+		private long getTimeout() {
+			return written ? LINGER_NANOS : IDLE_NANOS;
+		}
+
+		/**
+		 * Gives up on an unfinished upload, returns the packets it holds to
+		 * the pool and deletes its partial file
+		 *
+		 * @param reason
+		 *            Why the upload is given up on, for the message
+		 */
+		public void abandon(String reason) {
+			System.out.println("Upload to " + filename + " " + reason
+					+ ", partial file deleted");
+			flow.releaseBuffers();
+			try {
+				sink.close();
+			} catch (IOException e) {
+				// The upload is given up on anyway
+			}
+			new File(filename).delete();
+		}
+	}
+
+	public static void main(String argv[]) throws Exception {
+		int port = Integer.parseInt(argv[0]);
+		File directory = new File(argv[1]);
+		int window = Integer.parseInt(argv[2]);
+		Receiver4.setWindow(window);
+
+		TransportEngine engine = TransportEngine.bind(port);
+		BufferPool pool = new BufferPool(PACKET_SIZE, 4096);
+		HashMap<SocketAddress, Session> sessions = new HashMap<SocketAddress, Session>();
+		int uploads = 0;
+
+		byte[] packet_buffer = pool.take();
+		do {
+			// Sleep until a datagram arrives or a session needs attention
+			long now = System.nanoTime();
+			long wait = -1;
+			for (Session session : sessions.values()) {
+				long due = session.nanosUntilDue(now);
+				if (due >= 0) {
+					wait = wait < 0 ? due : Math.min(wait, due);
+				}
+			}
+			engine.await(wait);
+
+			int length = engine.receive(packet_buffer);
+			while (length >= 0) {
+				SocketAddress source = engine.getLastSource();
+				if (PathProbe.answer(engine, packet_buffer, length)) {
+					// Probes come before an upload and do not start one
+					length = engine.receive(packet_buffer);
+					continue;
+				}
+				Session session = sessions.get(source);
+				if (session == null && sessions.size() < MAX_SESSIONS
+						&& Utilities.isValidHeader(packet_buffer)
+						&& !Utilities.isAck(packet_buffer)
+						&& Integer.compareUnsigned(Utilities.getPacketNum(
+								packet_buffer), window) <= 0
+						&& Utilities.isIntact(packet_buffer, length)) {
+					// A new upload, which starts in the first window
+					uploads++;
+					InetSocketAddress address = (InetSocketAddress) source;
+					String filename = new File(directory, uploads + "-"
+							+ address.getAddress().getHostAddress() + "-"
+							+ address.getPort()).getPath();
+					FileSink sink = new FileSink(filename);
+					session = new Session(new Receiver4(engine, source, pool,
+							sink, argv), sink, filename);
+					sessions.put(source, session);
+				}
+
+				if (session != null) {
+					session.last_heard = System.nanoTime();
+					try {
+						if (session.flow.handleDatagram(packet_buffer, length)) {
+							packet_buffer = pool.take();
+						}
+					} catch (Exception e) {
+						// A broken upload must not take the others down
+						sessions.remove(source);
+						session.abandon("failed: " + e);
+						// The flow may have held on to the buffer before it
+						// failed, and has just returned it to the pool
+						packet_buffer = pool.take();
+					}
+				}
+				length = engine.receive(packet_buffer);
+			}
+
+			now = System.nanoTime();
+			for (Iterator<Session> it = sessions.values().iterator(); it
+					.hasNext();) {
+				Session session = it.next();
+				session.flow.flushAck(now);
+				if (session.flow.isComplete() && !session.written) {
+					try {
+						session.sink.close();
+						System.out.println("Transmission complete! File written: "
+								+ session.filename);
+					} catch (IOException e) {
+						// E.g. compressed blocks that do not inflate
+						System.out.println("Upload to " + session.filename
+								+ " failed: " + e + ", file deleted");
+						new File(session.filename).delete();
+					}
+					session.written = true;
+				}
+				if (session.isExpired(now)) {
+					if (!session.written) {
+						session.abandon("timed out");
+					}
+					it.remove();
+				}
+			}
+
+		} while (true);
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ *
+ * Reno-style congestion control. The window starts small and grows by one
+ * packet per acknowledged packet (slow start) until it reaches the slow start
+ * threshold, then by one packet per round trip (additive increase). A loss
+ * halves the window, and a time out drops it back to a single packet.
+ *
+ */
+
+public class RenoControl implements CongestionControl {
+	private static int INITIAL_WINDOW = 4;
+
+	private int max_window;
+	private double cwnd;
+	private double ssthresh;
+
+	/**
+	 * Constructor for RenoControl
+	 *
+	 * @param max_window
+	 *            The receiver's window, which the window never exceeds
+	 */
+	public RenoControl(int max_window) {
+		this.max_window = Math.max(1, max_window);
+		this.cwnd = Math.min(INITIAL_WINDOW, this.max_window);
+		this.ssthresh = this.max_window;
+	}
+
+	public void onAck(int acked, long rtt_nanos) {
+		if (acked <= 0) {
+			return;
+		}
+		if (cwnd < ssthresh) {
+			cwnd += acked;
+		} else {
+			cwnd += (double) acked / cwnd;
+		}
+		cwnd = Math.min(cwnd, max_window);
+	}
+
+	public void onLoss() {
+		ssthresh = Math.max(2, cwnd / 2);
+		cwnd = ssthresh;
+	}
+
+	public void onTimeout() {
+		ssthresh = Math.max(2, cwnd / 2);
+		cwnd = 1;
+	}
+
+	public int getWindow() {
+		return (int) cwnd;
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * 
+ * Holds packets that arrived ahead of the start of the receive window until
+ * the gap in front of them is filled. Packets are kept in a fixed ring of
+ * slots indexed by packet number modulo the capacity, so adding, finding and
+ * removing a packet are all constant time however large the window is.
+ * 
+ * The capacity must be at least the number of packet numbers the window can
+ * span, so that no two packets in the window share a slot.
+ * 
+ */
+
+public class ReorderWindow {
+	private byte[][] slots;
+	private int[] numbers;
+	private int capacity;
+	private int size;
+
+	/**
+	 * Constructor for ReorderWindow
+	 * 
+	 * @param capacity
+	 *            Number of slots, i.e. the span of the receive window
+	 */
+	public ReorderWindow(int capacity) {
+		this.capacity = capacity;
+		this.slots = new byte[capacity][];
+		this.numbers = new int[capacity];
+		this.size = 0;
+	}
+
+	/**
+	 * Stores a packet in the slot for its number
+	 * 
+	 * @param number
+	 *            The packet number
+	 * @param packet
+	 *            The packet in byte array form
+	 */
+	public void put(int number, byte[] packet) {
+		int slot = slotOf(number);
+		if (slots[slot] == null) {
+			size++;
+		}
+		slots[slot] = packet;
+		numbers[slot] = number;
+	}
+
+	/**
+	 * Checks whether a packet with the given number is being held
+	 * 
+	 * @param number
+	 *            The packet number
+	 * @return Boolean dependent on the packet's presence
+	 */
+	public boolean contains(int number) {
+		int slot = slotOf(number);
+		return slots[slot] != null && numbers[slot] == number;
+	}
+
+	/**
+	 * Removes and returns the packet with the given number
+	 * 
+	 * @param number
+	 *            The packet number
+	 * @return The packet if it was being held, null otherwise
+	 */
+	public byte[] take(int number) {
+		byte[] packet = get(number);
+		if (packet != null) {
+			slots[slotOf(number)] = null;
+			size--;
+		}
+		return packet;
+	}
+
+	/**
+	 * Returns the packet with the given number without removing it
+	 * 
+	 * @param number
+	 *            The packet number
+	 * @return The packet if it is being held, null otherwise
+	 */
+	public byte[] get(int number) {
+		if (!contains(number)) {
+			return null;
+		}
+		return slots[slotOf(number)];
+	}
+
+	// Get the number of packets currently held
+	public int size() {
+		return size;
+	}
+
+	// Drop every packet held by the window
+	public void clear() {
+		for (int x = 0; x < capacity; x++) {
+			slots[x] = null;
+		}
+		size = 0;
+	}
+
+	// Slot a packet number maps to
+	private int slotOf(int number) {
+		return Integer.remainderUnsigned(number, capacity);
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ *
+ * Estimates the retransmission timeout from round-trip time samples, as in
+ * RFC 6298. A smoothed round-trip time and its mean deviation are kept, and
+ * the timeout is the smoothed time plus four deviations. Every time out
+ * doubles the timeout until a fresh sample arrives.
+ *
+ * Samples come from the timestamp that every acknowledgment echoes. Karn's
+ * rule applies: acknowledgments for retransmitted packets are never sampled,
+ * so a backed off timeout stays in place until a packet gets through on its
+ * first attempt.
+ *
+ * The sending thread and a receptor thread may share an estimator, so all
+ * methods are synchronized.
+ *
+ */
+
+public class RttEstimator {
+	public static final long MIN_TIMEOUT_NANOS = 10000000L;
+	public static final long MAX_TIMEOUT_NANOS = 60000000000L;
+	private static long GRANULARITY_NANOS = 1000000L;
+
+	private long min_timeout;
+	private long max_timeout;
+	private long srtt;
+	private long rttvar;
+	private long latest;
+	private long timeout;
+	private boolean sampled;
+
+	/**
+	 * Constructor for RttEstimator
+	 *
+	 * @param initial_nanos
+	 *            Timeout to use until the first sample arrives
+	 * @param min_nanos
+	 *            Lower bound for the timeout
+	 * @param max_nanos
+	 *            Upper bound for the timeout
+	 */
+	public RttEstimator(long initial_nanos, long min_nanos, long max_nanos) {
+		this.min_timeout = min_nanos;
+		this.max_timeout = Math.max(min_nanos, max_nanos);
+		this.timeout = clamp(initial_nanos);
+		this.sampled = false;
+	}
+
+	/**
+	 * Constructor for the timeout given on a sender's command line. The
+	 * timeout is used until the first sample arrives, and optionally bounds
+	 * the estimate from then on.
+	 *
+	 * @param timeout
+	 *            Timeout in milliseconds
+	 * @param floor
+	 *            Whether the estimate may never go below the given timeout
+	 * @param ceiling
+	 *            Whether the estimate may never go above the given timeout
+	 */
+	public RttEstimator(int timeout, boolean floor, boolean ceiling) {
+		this(timeout * 1000000L, floor ? timeout * 1000000L
+				: MIN_TIMEOUT_NANOS, ceiling ? timeout * 1000000L
+				: MAX_TIMEOUT_NANOS);
+	}
+
+	/**
+	 * Feeds a round-trip time sample into the estimate
+	 *
+	 * @param rtt_nanos
+	 *            The measured round-trip time, negative samples are ignored
+	 */
+	public synchronized void sample(long rtt_nanos) {
+		if (rtt_nanos < 0) {
+			return;
+		}
+		latest = rtt_nanos;
+		if (!sampled) {
+			srtt = rtt_nanos;
+			rttvar = rtt_nanos / 2;
+			sampled = true;
+		} else {
+			// alpha = 1/8 and beta = 1/4
+			rttvar += (Math.abs(srtt - rtt_nanos) - rttvar) / 4;
+			srtt += (rtt_nanos - srtt) / 8;
+		}
+		timeout = clamp(srtt + Math.max(GRANULARITY_NANOS, 4 * rttvar));
+	}
+
+	// Double the timeout after a time out
+	public synchronized void backoff() {
+		timeout = clamp(timeout * 2);
+	}
+
+	/**
+	 * Doubles the timeout after a time out, unless the timer that expired
+	 * was armed with a shorter timeout than the current one. With one timer
+	 * per packet in flight this backs off once per round of time outs
+	 * rather than once per packet.
+	 *
+	 * @param expired_nanos
+	 *            The timeout the expired timer was armed with
+	 * @return True if this time out started a new round and the timeout was
+	 *         doubled
+	 */
+	public synchronized boolean backoff(long expired_nanos) {
+		if (expired_nanos >= timeout) {
+			timeout = clamp(timeout * 2);
+			return true;
+		}
+		return false;
+	}
+
+	// Get the current retransmission timeout in nanoseconds
+	public synchronized long getTimeoutNanos() {
+		return timeout;
+	}
+
+	// Get the current retransmission timeout, rounded up to milliseconds
+	public synchronized int getTimeoutMillis() {
+		return (int) ((timeout + 999999) / 1000000);
+	}
+
+	// Get the latest round-trip time sample in nanoseconds, or -1 if unknown
+	public synchronized long getLatestRtt() {
+		return sampled ? latest : -1;
+	}
+
+	// Get the smoothed round-trip time in nanoseconds, or -1 if unknown
+	public synchronized long getSmoothedRtt() {
+		return sampled ? srtt : -1;
+	}
+
+	// Keep the timeout within its bounds
+	private long clamp(long nanos) {
+		return Math.min(max_timeout, Math.max(min_timeout, nanos));
+	}
+}
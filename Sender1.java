@@ -9,8 +9,10 @@ import java.io.*;
 import java.net.*;
 
 public class Sender1 {
-	private static int PACKET_SIZE = 1024;
-	private static int HEADER_SIZE = 5;
+	private static int PACKET_SIZE;
+	private static int PROBE_TIMEOUT = 200;
+	private static int HEADER_SIZE = Utilities.HEADER_SIZE;
+	private static String DEFAULT_RATE = "1000";
 
 	public static void main(String argv[]) throws Exception {
 		String hostname = argv[0];
@@ -19,51 +21,58 @@ public class Sender1 {
 
 		InetAddress IP_ADDRESS = InetAddress.getByName(hostname);
 		DatagramSocket clientSocket = new DatagramSocket();
+		PACKET_SIZE = PathProbe.getPacketSize(argv, clientSocket, IP_ADDRESS,
+				port, PROBE_TIMEOUT);
 
 		FileInputStream inFromUser = new FileInputStream(filepath);
 
+		/* Send at a fixed rate (KB/s), there are no acknowledgments to go by */
+		double rate = Double.parseDouble(Utilities.getOption(argv, "-rate",
+				DEFAULT_RATE)) * 1024;
+		Pacer pacer = new Pacer(rate, PACKET_SIZE);
+
 		/* Initialize variables for use in file transfer */
-		int FILE_SIZE = inFromUser.available();
+		long FILE_SIZE = inFromUser.getChannel().size();
 		int tail_size;
 		if (FILE_SIZE < PACKET_SIZE - HEADER_SIZE) {
-			tail_size = FILE_SIZE;
+			tail_size = (int) FILE_SIZE;
 		} else {
 			tail_size = PACKET_SIZE - HEADER_SIZE;
 		}
-		int num_of_packets = (int) Math.ceil(FILE_SIZE / (double) tail_size);
-		int packet_num = 0;
+		long num_of_packets = (long) Math.ceil(FILE_SIZE / (double) tail_size);
+		long packet_num = 0;
 		boolean eof = false;
 
+		/* One buffer and datagram are reused for every packet */
+		byte[] sendData = new byte[PACKET_SIZE];
+		PacketCodec packet = new PacketCodec(sendData);
+		DatagramPacket sendPacket = new DatagramPacket(sendData,
+				sendData.length, IP_ADDRESS, port);
+
 		/* Transfer loop */
 		do {
-			/* Artificial 10ms delay due to transfer speed issues */
-			Thread.sleep(100);
-
 			/* Set end-of-file (eof) flag if this is the last packet */
 			if (packet_num == num_of_packets - 1) {
-				tail_size = inFromUser.available();
+				tail_size = (int) (FILE_SIZE - packet_num * tail_size);
 				eof = true;
 			}
 
-			/* Prepare packet */
-			byte[] tail = new byte[tail_size];
-			byte[] eof_arr = new byte[1];
-			if (eof == false) {
-				eof_arr[0] = (byte) 0;
-			} else {
-				eof_arr[0] = (byte) 1;
-			}
-			byte[] size = Utilities.intToBytes(tail_size);
-
-			byte[] head = Utilities.concatArray(
-					Utilities.intToBytes(packet_num), Utilities.concatArray(eof_arr, size));
-
-			inFromUser.read(tail);
-			byte[] sendData = Utilities.concatArray(head, tail);
+			/* Prepare packet, the data is read in behind the header */
+			packet.writeHeader((int) packet_num, tail_size, eof);
+			int read = 0;
+			while (read < tail_size) {
+				int n = inFromUser.read(sendData, HEADER_SIZE + read,
+						tail_size - read);
+				if (n < 0) {
+					break;
+				}
+				read += n;
+			}
 
-			/* Send packet */
-			DatagramPacket sendPacket = new DatagramPacket(sendData,
-					sendData.length, IP_ADDRESS, port);
+			/* Send packet once the pacer allows it */
+			packet.seal();
+			pacer.pace(HEADER_SIZE + tail_size);
+			sendPacket.setLength(HEADER_SIZE + tail_size);
 			clientSocket.send(sendPacket);
 
 			packet_num += 1;
@@ -7,10 +7,19 @@
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.ForkJoinTask;
 
 public class Sender2 {
-	private static int PACKET_SIZE = 1024;
-	private static int HEADER_SIZE = 5;
+	private static int PACKET_SIZE;
+	private static int HEADER_SIZE = Utilities.HEADER_SIZE;
+
+	// Reused for every packet and acknowledgment
+	private static byte[] receive_ack = new byte[Utilities.ACK_SIZE];
+	private static PacketCodec ack_codec = new PacketCodec(receive_ack);
+	private static DatagramPacket send_packet = new DatagramPacket(
+			new byte[0], 0);
+	private static DatagramPacket receive_packet = new DatagramPacket(
+			receive_ack, receive_ack.length);
 
 	public static void main(String argv[]) throws Exception {
 		String hostname = argv[0];
@@ -18,26 +27,39 @@ public class Sender2 {
 		String filepath = argv[2];
 		int timeout = Integer.parseInt(argv[3]);
 
-		FileInputStream inFromUser = new FileInputStream(filepath);
+		// The timeout only seeds the estimate unless -floor or -ceiling is set
+		RttEstimator rtt = new RttEstimator(timeout, Utilities.hasFlag(argv,
+				"-floor"), Utilities.hasFlag(argv, "-ceiling"));
+
 		DatagramSocket clientSocket = new DatagramSocket();
 		InetAddress IPAddress = InetAddress.getByName(hostname);
+		PACKET_SIZE = PathProbe.getPacketSize(argv, clientSocket, IPAddress,
+				port, timeout);
 
 		/**
-		 * For this question I decided to read the full file into memory for
-		 * simplicity. Of course, this is highly discouraged in real world
-		 * applications.
+		 * The file is memory mapped rather than read into an array, so each
+		 * packet is copied out of the mapping only when it is about to be
+		 * sent. With -compress the file is first turned into compressed
+		 * blocks, which are sent instead. With -manifest the file is hashed
+		 * in the background and its tree is sent after it.
 		 */
-		
-		byte[] fullFileByteArray = new byte[inFromUser.available()];
-		inFromUser.read(fullFileByteArray, 0, inFromUser.available());
-
+		ForkJoinTask<byte[]> manifest = null;
+		if (Utilities.hasFlag(argv, "-manifest")) {
+			manifest = Manifest.submit(filepath);
+		}
+		boolean compress = Utilities.hasFlag(argv, "-compress");
+		PacketSource source = new PacketSource(compress ? BlockCompressor
+				.compress(filepath) : filepath, PACKET_SIZE - HEADER_SIZE);
+		source.setCompressed(compress);
+		if (manifest != null) {
+			source.setTrailer(manifest, Manifest.getTrailerLength(new File(
+					filepath).length()));
+		}
+		byte[] sendData = new byte[PACKET_SIZE];
+		PacketCodec packet = new PacketCodec(sendData);
 
 		// Initialize variables for use in file transfer
-		int FILE_SIZE = fullFileByteArray.length;
-		int bytesSEN = 0;
-		int bytesREM = FILE_SIZE;
-		int tailSIZE = PACKET_SIZE - HEADER_SIZE;
-		int numOfPackets = (int) Math.ceil(FILE_SIZE / (double) tailSIZE) - 1;
+		long FILE_SIZE = new File(filepath).length();
 		int packetNUM = 0;
 		boolean endOfFile = false;
 
@@ -50,31 +72,21 @@ public class Sender2 {
 			// Artificial 10ms delay due to transfer speed issues
 			//Thread.sleep(10);
 
-			if (packetNUM == numOfPackets) {
-				tailSIZE = bytesREM;
+			if (source.isLast(packetNUM)) {
 				endOfFile = true;
 			}
 
-			byte[] tail = new byte[tailSIZE];
-			byte[] num = Utilities.intToBytes(packetNUM);
-			byte[] eof = new byte[1];
-			if (endOfFile == false) {
-				eof[0] = (byte) 0;
-			} else {
-				eof[0] = (byte) 1;
-			}
-			byte[] size = Utilities.intToBytes(tailSIZE);
-
-			System.arraycopy(fullFileByteArray, bytesSEN, tail, 0, tailSIZE);
-
-			byte[] sendData = Utilities.concatArray(
-					Utilities.concatArray(Utilities.concatArray(num, eof), size), tail);
+			int length = source.readPacket(packetNUM, packet);
 			int a = 0;
+			boolean resend = false;
 			do {
-				a = sendAndWait(sendData, packetNUM, timeout, IPAddress, port,
-						clientSocket);
+				packet.stamp(resend);
+				packet.seal();
+				a = sendAndWait(sendData, length, packetNUM, rtt,
+						IPAddress, port, clientSocket);
 				if(a != 1){
 					retrans++;
+					resend = true;
 				}
 			} while (a != 1);
 
@@ -82,12 +94,11 @@ public class Sender2 {
 				end_time = System.currentTimeMillis();
 			}
 
-			bytesSEN += tailSIZE;
-			bytesREM = fullFileByteArray.length - bytesSEN;
 			packetNUM += 1;
 			//System.out.println("SENT DATAGRAM ");
 
 		} while (endOfFile == false);
+		source.close();
 		clientSocket.close();
 
 		double transfer_time = (end_time*1.0 - start_time*1.0);
@@ -103,10 +114,14 @@ public class Sender2 {
 	 * 
 	 * @param b
 	 *            A byte array of data to send to the host machine.
+	 * @param len
+	 *            The number of bytes of the array that make up the packet.
 	 * @param num
 	 *            The packet number of the particular datagram.
-	 * @param t
-	 *            The timeout period (in ms) before retransmission.
+	 * @param rtt
+	 *            Estimator for the timeout period before retransmission. It
+	 *            is fed the round-trip time of the acknowledgment and backs
+	 *            off if the timeout is reached.
 	 * @param ip
 	 *            The IP address of the host machine.
 	 * @param p
@@ -120,28 +135,37 @@ public class Sender2 {
 	 *         packet was received.
 	 * @throws IOException
 	 */
-	public static int sendAndWait(byte[] b, int num, int t, InetAddress ip,
-			Integer p, DatagramSocket d) throws IOException {
+	public static int sendAndWait(byte[] b, int len, int num,
+			RttEstimator rtt, InetAddress ip, Integer p, DatagramSocket d)
+			throws IOException {
 		int ack = 0;
-		byte[] receiveAck = new byte[3];
 		try {
 			// Send packet
-			DatagramPacket packet = new DatagramPacket(b, b.length, ip, p);
-			d.send(packet);
+			send_packet.setData(b, 0, len);
+			send_packet.setAddress(ip);
+			send_packet.setPort(p);
+			d.send(send_packet);
 
 			// Wait for acknowledgment
-			DatagramPacket receivePacket = new DatagramPacket(receiveAck,
-					receiveAck.length);
-			d.setSoTimeout(t);
-			d.receive(receivePacket);
-			if (Utilities.bytesToInt(receiveAck[0], receiveAck[1]) == num) {
-				ack = (int) receiveAck[2];
+			receive_packet.setLength(receive_ack.length);
+			d.setSoTimeout(rtt.getTimeoutMillis());
+			d.receive(receive_packet);
+			if (!ack_codec.isValid(receive_packet.getLength())
+					|| !ack_codec.isAck()) {
+				ack = -1;
+			} else if (ack_codec.getNumber() == num) {
+				rtt.sample(Utilities.getRttSample(receive_ack));
+				ack = 1;
 			} else {
 				ack = -1;
 			}
 
-		} catch (SocketException e) {
+		} catch (SocketTimeoutException e) {
 			// Socket timed out
+			rtt.backoff();
+			ack = 0;
+
+		} catch (SocketException e) {
 			ack = 0;
 
 		} catch (IOException e) {
@@ -3,63 +3,100 @@
  * @author Nicholas Swafford <s0827481 @ sms.ed.ac.uk>
  * @since 19/02/2012
  * 
- * This implementation of Sender3 allows packets to be received in whichever
- * order (in the case that an acknowledgment gets delayed whilst the next one
- * doesn't, it is irrelevant which one arrives first). The receptor listens for
- * all packets during a sending run, and checks whether the acknowledgments it
- * is looking for are received in the meantime. Once all acknowledgments time 
- * out or are received the buffer is cleared.
+ * This implementation of Sender3 keeps its Go-Back-N window in a
+ * GoBackNWindow, which only tracks the base, the next packet to send and the
+ * first packet never sent. The receptor listens for cumulative
+ * acknowledgments on its own thread, and a single timer on the oldest packet
+ * in flight sends the window again from the base once it runs out.
  *
  */
 
 import java.io.*;
 import java.net.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.LockSupport;
 
 public class Sender3 {
-	private static int PACKET_SIZE = 1024;
-	private static int HEADER_SIZE = 5;
-	private static int DATA_SIZE = PACKET_SIZE - HEADER_SIZE;
-	private static int ACK_SIZE = 3;
+	private static int PACKET_SIZE;
+	private static int HEADER_SIZE = Utilities.HEADER_SIZE;
+	private static int DATA_SIZE;
+	private static int ACK_SIZE = Utilities.ACK_SIZE;
 	private static int TIMEOUT;
 	private static int WINDOW;
 	private static int PORT;
-	private static int FILE_SIZE;
+	private static long FILE_SIZE;
 	private static DatagramSocket clientSocket;
+	private static RttEstimator rtt;
+	private static CongestionControl cc;
+	private static Pacer pacer;
+	private static FecEncoder encoder;
+	private static double PACING_GAIN = 1.25;
+	private static byte[] send_buffer;
+	private static PacketCodec send_codec;
+	private static DatagramPacket send_packet;
+	private static DatagramPacket parity_packet = new DatagramPacket(
+			new byte[0], 0);
 	private static long start_time;
 	private static long end_time;
+	private static int DUP_THRESHOLD = 3;
 
 	public static class Receptor implements Runnable {
-		private ArrayList<byte[]> buffer;
-		private int last_acknowledged;
-		private boolean end;
+		private AckBitmap acks;
+		private volatile boolean end;
+		private volatile Thread waiter;
+		private volatile boolean fast_retransmit;
+		private int dup_acks;
 
 		public Receptor() {
-			this.buffer = new ArrayList<byte[]>();
-			this.last_acknowledged = -1;
+			this.acks = new AckBitmap(WINDOW, 0);
 			this.end = false;
 		}
 
 		public void run() {
-			byte[] ack_buffer = new byte[ACK_SIZE];
+			byte[] ack_buffer = new byte[ACK_SIZE + Utilities.MAX_SACK_BYTES];
+			DatagramPacket receivePacket = new DatagramPacket(ack_buffer,
+					ack_buffer.length);
 			do {
 				try {
-					ack_buffer = new byte[ACK_SIZE];
-					DatagramPacket receivePacket = new DatagramPacket(
-							ack_buffer, ack_buffer.length);
+					receivePacket.setLength(ack_buffer.length);
 					clientSocket.receive(receivePacket);
 				} catch (Exception e) {
+					if (clientSocket.isClosed()) {
+						// The transfer is over, stop instead of spinning
+						break;
+					}
+					continue;
 				}
 
-				if (Utilities.getPacketNum(ack_buffer) <= last_acknowledged) {
+				if (receivePacket.getLength() < ACK_SIZE
+						|| !Utilities.isAck(ack_buffer)) {
 					continue;
 
-				} else if (checkForPacket(ack_buffer) == false) {
-					addPacket(ack_buffer);
+				} else {
+					rtt.sample(Utilities.getRttSample(ack_buffer));
+
+					// Publish the acknowledgment and wake the sending thread
+					if (acks.markAck(ack_buffer, receivePacket.getLength())) {
+						dup_acks = 0;
+						wake();
+
+					} else if (Utilities.isSack(ack_buffer)
+							&& Utilities.getPacketNum(ack_buffer) == acks
+									.getBase()) {
+						/**
+						 * The receiver got a packet past a hole and repeated
+						 * its cumulative acknowledgment. Enough of those mean
+						 * the packet at the hole is lost, so ask the sending
+						 * thread to go back to it without waiting for the
+						 * time out.
+						 */
+						dup_acks++;
+						if (dup_acks == DUP_THRESHOLD) {
+							fast_retransmit = true;
+							wake();
+						}
+					}
 
 				}
 
@@ -70,156 +107,115 @@ public class Sender3 {
 			this.end = true;
 		}
 
-		/**
-		 * Allows a synchronized addition to the buffer
-		 * 
-		 * @param packet
-		 *            Packet to add to the buffer
-		 */
-		public synchronized void addPacket(byte[] packet) {
-			buffer.add(packet);
+		// Wake the sending thread if it is waiting for an acknowledgment
+		private void wake() {
+			Thread w = waiter;
+			if (w != null) {
+				LockSupport.unpark(w);
+			}
+		}
+
+		// Get the number of the first packet that has not been acknowledged
+		public int getBase() {
+			return acks.getBase();
 		}
 
 		/**
-		 * Checks whether a given packet is contained within the buffer
+		 * Checks whether duplicate acknowledgments have asked for a fast
+		 * retransmission since the last call
 		 * 
-		 * @param packet
-		 *            Packet you are looking for
-		 * @return Boolean dependent on the packet's presence
+		 * @return True if the packets from the hole onwards should be sent
+		 *         again right away
 		 */
-		public synchronized boolean checkForPacket(byte[] packet) {
-			if (buffer.contains(packet)) {
-				return true;
-			} else {
+		public boolean takeFastRetransmit() {
+			if (!fast_retransmit) {
 				return false;
 			}
+			fast_retransmit = false;
+			return true;
 		}
-		
+
 		/**
-		 * Verifies whether the buffer contains a particular packet given its
-		 * number
+		 * Verifies whether a particular packet has been acknowledged given
+		 * its number. This only reads the ack bitmap, so it never blocks the
+		 * receptor thread.
 		 * 
 		 * @param number
 		 *            The number of the packet you are searching for
-		 * @return Boolean dependent on the packet's presence
+		 * @return Boolean dependent on the packet's acknowledgment
 		 */
-		public synchronized boolean checkForPacketByNumber(int number) {
-			for (byte[] x : buffer) {
-				if (Utilities.getPacketNum(x) == number) {
-					return true;
-				}
-			}
-			return false;
-		}
-
-		// Clear buffer to avoid size issues
-		public synchronized void clearBuffer() {
-			buffer.clear();
+		public boolean checkForPacketByNumber(int number) {
+			return acks.isAcked(number);
 		}
-	}
-
-	public static class IndividualPacketManager {
-		private byte[] packet_data;
-		private InetAddress ip;
-		private Integer port;
-		private Integer status;
-		private long packet_timeout;
 
 		/**
-		 * The IndividualPacketManager class includes a variable that keeps
-		 * track of the packet's current status. The following values represent
-		 * which status the packet can find itself in:
-		 * 
-		 *  0	Packet has just been initialized and is ready for action
-		 *  1	Packet has been acknowledged and can be discarded
-		 * -1	Packet is currently waiting on acknowledgment
-		 * -2	Acknowledgment for this packet has timed out
-		 * -3	The packet has been killed by the user [invoked destroy()]
+		 * Blocks the calling thread until a new acknowledgment arrives or the
+		 * given time has passed, whichever comes first
 		 * 
+		 * @param nanos
+		 *            Maximum time to wait in nanoseconds, or a negative value
+		 *            to wait for an acknowledgment only
 		 */
-
-		/**
-		 * Constructor for IndividualPacketManager (IPM)
-		 * 
-		 * @param data
-		 *            Packet for this particular IPM to manage
-		 * @param ip
-		 *            IP Address of the packet's destination
-		 * @param port
-		 *            Port number of the packet's destination
-		 */
-		public IndividualPacketManager(byte[] data, InetAddress ip, Integer port) {
-			this.packet_data = data;
-			this.ip = ip;
-			this.port = port;
-			this.status = 0;
-		}
-
-		/**
-		 * Sends the packet through the given socket
-		 * 
-		 * @param socket
-		 *            Socket to transfer the data through
-		 */
-		public void sendThroughSocket(DatagramSocket socket) {
-			try {
-				DatagramPacket packet = new DatagramPacket(packet_data,
-						packet_data.length, ip, port);
-				socket.send(packet);
-
-			} catch (Exception e) {
-
+		public void awaitAck(long nanos) {
+			waiter = Thread.currentThread();
+			if (nanos < 0) {
+				LockSupport.park(this);
+			} else if (nanos > 0) {
+				LockSupport.parkNanos(this, nanos);
 			}
 		}
+	}
 
-		/**
-		 * Set the time out for this particular packet's acknowledgment
-		 * 
-		 * @param timeout
-		 *            Timeout in milliseconds
-		 */
-		public void setTimeout(int timeout) {
-			status = -1;
-			packet_timeout = System.currentTimeMillis() + timeout;
-		}
-
-		// Get the packet's current status
-		public Integer getStatus() {
-			return status;
-		}
-
-		// Set the packet's status
-		public void setStatus(int status) {
-			this.status = status;
-		}
-
-		// Get the packet's number
-		public Integer getNumber() {
-			return Utilities.getPacketNum(packet_data);
-		}
-		
-		public long getTimeout() {
-			return packet_timeout;
-		}
-
-		// Return the packet managed by this IPM
-		public byte[] getData() {
-			return this.packet_data;
-		}
+	/**
+	 * Sends a packet through the client socket. The packet is read from the
+	 * file mapping into the send buffer right before it leaves. With forward
+	 * error correction, a parity packet follows every completed block.
+	 * 
+	 * @param source
+	 *            Source the packet's data is read from
+	 * @param number
+	 *            Number of the packet to send
+	 * @param retransmission
+	 *            Whether the packet has been sent before
+	 * @param ip
+	 *            IP Address of the packet's destination
+	 */
+	public static void sendPacket(PacketSource source, int number,
+			boolean retransmission, InetAddress ip) {
+		try {
+			int length = source.readPacket(number, send_codec);
+			pacer.pace(length);
+			send_codec.stamp(retransmission);
+			send_codec.seal();
+			send_packet.setData(send_buffer, 0, length);
+			send_packet.setAddress(ip);
+			send_packet.setPort(PORT);
+			clientSocket.send(send_packet);
+
+			if (encoder != null) {
+				encoder.recordSend(retransmission);
+				int parity_length = 0;
+				if (retransmission == false) {
+					ByteBuffer data = send_codec.buffer();
+					data.limit(length);
+					data.position(HEADER_SIZE);
+					parity_length = encoder.add(number, data,
+							send_codec.isEOF());
+					data.clear();
+				}
+				if (parity_length > 0) {
+					pacer.pace(parity_length);
+					parity_packet.setData(encoder.getParity(), 0,
+							parity_length);
+					parity_packet.setAddress(ip);
+					parity_packet.setPort(PORT);
+					clientSocket.send(parity_packet);
+				}
+			}
 
-		// Destroy all data contained within this IPM
-		public void destroy() {
-			this.packet_data = null;
-			this.ip = null;
-			this.port = null;
-			this.status = -3;
+		} catch (Exception e) {
+			// Treat like a lost packet, the time out will resend it
 		}
-		
-		// Reset the IPM
-		public void reset() {
-			this.status = 0;
-		}
-
 	}
 
 	public static void main(String argv[]) throws Exception {
@@ -227,123 +223,116 @@ public class Sender3 {
 		PORT = Integer.parseInt(argv[1]);
 		String filepath = argv[2];
 		TIMEOUT = Integer.parseInt(argv[3]);
+		rtt = new RttEstimator(TIMEOUT, Utilities.hasFlag(argv, "-floor"),
+				Utilities.hasFlag(argv, "-ceiling"));
 		WINDOW = Integer.parseInt(argv[4]);
-		FileInputStream inFromUser = new FileInputStream(filepath);
+
+		// The window argument is only the ceiling for the congestion window
+		if (Utilities.hasFlag(argv, "-vegas")) {
+			cc = new DelayControl(WINDOW);
+		} else {
+			cc = new RenoControl(WINDOW);
+		}
+
+		// Settle the datagram size before the receptor takes over the socket
 		clientSocket = new DatagramSocket();
 		InetAddress IPAddress = InetAddress.getByName(hostname);
+		PACKET_SIZE = PathProbe.getPacketSize(argv, clientSocket, IPAddress,
+				PORT, TIMEOUT);
+		DATA_SIZE = PACKET_SIZE - HEADER_SIZE;
+		send_buffer = new byte[PACKET_SIZE];
+		send_codec = new PacketCodec(send_buffer);
+		send_packet = new DatagramPacket(send_buffer, PACKET_SIZE);
+
+		// Spread the window over a round trip instead of sending it at once
+		pacer = new Pacer(0, PACKET_SIZE);
+		boolean pacing = !Utilities.hasFlag(argv, "-nopace");
+		if (Utilities.hasFlag(argv, "-fec")) {
+			// Send parity so that single losses need no retransmission
+			encoder = new FecEncoder(DATA_SIZE);
+		}
+		// Hash the file in the background, its tree is sent after it
+		ForkJoinTask<byte[]> manifest = null;
+		if (Utilities.hasFlag(argv, "-manifest")) {
+			manifest = Manifest.submit(filepath);
+		}
+		// Send compressed blocks instead of the file itself
+		boolean compress = Utilities.hasFlag(argv, "-compress");
+		PacketSource source = new PacketSource(compress ? BlockCompressor
+				.compress(filepath) : filepath, DATA_SIZE);
+		source.setCompressed(compress);
+		if (manifest != null) {
+			source.setTrailer(manifest, Manifest.getTrailerLength(new File(
+					filepath).length()));
+		}
 
 		Receptor receptor = new Receptor();
 		Thread receiver = new Thread(receptor);
 		receiver.start();
 
-		int packet_number = 0;
+		GoBackNWindow window = new GoBackNWindow(0);
 		boolean eof_ack = false;
-		boolean eof_reached = false;
 
 		int retrans = 0;
 
-		ArrayList<IndividualPacketManager> ipml = new ArrayList<IndividualPacketManager>();
-
 		start_time = System.currentTimeMillis();
-		FILE_SIZE = inFromUser.available();
+		FILE_SIZE = new File(filepath).length();
 
 		do {
-			if (!eof_reached) {
-				
-				// Ensure there are only a WINDOW amount of packets buffered
-				while (ipml.size() < WINDOW) {
-					
-					if (inFromUser.available() <= 0) {
-						// This should only trigger if the file size is 0
-						eof_reached = true;
-						break;
-
-					} else if (inFromUser.available() <= DATA_SIZE) {
-						// Reached the end of the file
-						byte[] data = new byte[inFromUser.available()];
-						inFromUser.read(data);
-						byte[] packet = preparePacket(packet_number, data, true);
-						IndividualPacketManager ipm = new IndividualPacketManager(
-								packet, IPAddress, PORT);
-						ipml.add(ipm);
-						eof_reached = true;
-						packet_number++;
-						break;
-
-					} else {
-						byte[] data = new byte[DATA_SIZE];
-						inFromUser.read(data);
-						byte[] packet = preparePacket(packet_number, data, false);
-						IndividualPacketManager ipm = new IndividualPacketManager(
-								packet, IPAddress, PORT);
-						ipml.add(ipm);
-						packet_number++;
-
-					}
-				}
-			}
-
-
-			ArrayList<IndividualPacketManager> to_clear = new ArrayList<IndividualPacketManager>();
-
-			boolean resend_all = false;
-			for (IndividualPacketManager ipm : ipml) {
-
-				if (ipm.getStatus() == -1) {
-					if (System.currentTimeMillis() > ipm.getTimeout()) {
-						// Acknowledgment has timed out
-						ipm.setStatus(-2);
-						resend_all = true;
-
-						// Since there are still some packets that might have
-						// been
-						// acknowledged the loop does not break at this point
-
-					} else if (receptor.checkForPacketByNumber(ipm.getNumber())) {
-						ipm.setStatus(1);
-					} else {
-						continue;
-					}
-
-				} else if (ipm.getStatus() == 1) {
-					// Packet has been acknowledged and the IPM can be cleared
-					to_clear.add(ipm);
-
-				} else if (ipm.getStatus() == 0) {
-					ipm.sendThroughSocket(clientSocket);
-					ipm.setTimeout(TIMEOUT);
+			// Slide the window over everything the receiver has acknowledged
+			int acked = window.ackTo(receptor.getBase());
+			if (acked > 0) {
+				cc.onAck(acked, rtt.getLatestRtt());
+				if (window.getInFlight() > 0) {
+					window.startTimer(rtt.getTimeoutNanos());
+				} else {
+					window.stopTimer();
 				}
 			}
-
-			// Clear all acknowledged packets from IPML
-			for (IndividualPacketManager tc : to_clear) {
-				ipml.remove(tc);
-				tc.destroy();
-				tc = null;
+			if (pacing && rtt.getSmoothedRtt() > 0) {
+				pacer.setRate(PACING_GAIN * cc.getWindow() * PACKET_SIZE * 1e9
+						/ rtt.getSmoothedRtt());
 			}
 
-			// Sort the collection by packet number
-			sortIPMCollection(ipml);
-
 			/**
-			 * A packet has timed out and triggered resend_all, so all packets
-			 * that did not receive an acknowledgment (status was waiting or
-			 * timed out) are all sent at once.
-			 * 
-			 * TODO Find a way to implement this that excludes packets with
-			 * status 0 that are caught within the resend all
+			 * When the oldest packet in flight times out, go back to it and
+			 * send the window again from there. Duplicate acknowledgments do
+			 * the same without waiting for the time out (fast retransmit).
+			 * The congestion window is only halved then, and the timeout is
+			 * not backed off (fast recovery).
 			 */
-			if (resend_all) {
-				for (IndividualPacketManager ipm : ipml) {
+			boolean fast_retransmit = receptor.takeFastRetransmit();
+			if (window.isTimerExpired(System.nanoTime())) {
+				rtt.backoff();
+				cc.onTimeout();
+				window.goBack();
+			} else if (fast_retransmit && window.getInFlight() > 0) {
+				cc.onLoss();
+				window.goBack();
+			}
+
+			// Send as much as the congestion window allows, in order
+			while (window.getInFlight() < cc.getWindow()
+					&& (window.isRetransmitting() || source.hasPacket(window
+							.getNextSeq()))) {
+				boolean retransmission = window.isRetransmitting();
+				if (retransmission) {
 					retrans++;
-					ipm.reset();
-					ipm.sendThroughSocket(clientSocket);
-					ipm.setTimeout(TIMEOUT);
+				}
+				sendPacket(source, window.getSendNext(), retransmission,
+						IPAddress);
+				window.markSent();
+				if (!window.isTimerRunning()) {
+					window.startTimer(rtt.getTimeoutNanos());
 				}
 			}
 
-			if (eof_reached && ipml.isEmpty()) {
+			if (!source.hasPacket(window.getBase())) {
+				// Every packet up to the end-of-file has been acknowledged
 				eof_ack = true;
+			} else {
+				// Sleep until the next acknowledgment or time out is due
+				receptor.awaitAck(window.nanosUntilTimeout(System.nanoTime()));
 			}
 		} while (!eof_ack);
 		end_time = System.currentTimeMillis();
@@ -356,60 +345,10 @@ public class Sender3 {
 		System.out.println("Retransmissions: " + retrans);
 		
 
+		receptor.stop();
 		receiver.interrupt();
+		source.close();
 		clientSocket.close();
 	}
 
-	/**
-	 * Prepares a packet for transfer
-	 * 
-	 * @param packet_number
-	 *            Number of the particular packet
-	 * @param data
-	 *            File data to transfer
-	 * @param eof
-	 *            Whether or not the packet is the end-of-file
-	 * @return A packet in byte array form to be used in transfer
-	 */
-	public static byte[] preparePacket(int packet_number, byte[] data,
-			boolean eof) {
-		byte[] head = new byte[HEADER_SIZE];
-
-		byte[] num = Utilities.intToBytes(packet_number);
-		byte[] len = Utilities.intToBytes(data.length);
-
-		head[0] = num[0];
-		head[1] = num[1];
-
-		if (eof == true) {
-			head[2] = (byte) 1;
-		} else {
-			head[2] = (byte) 0;
-		}
-
-		head[3] = len[0];
-		head[4] = len[1];
-
-		return Utilities.concatArray(head, data);
-	}
-
-	/**
-	 * Sorts a collection of IPMs in ascending order based on their packet
-	 * number
-	 * 
-	 * @param unsorted
-	 *            An ArrayList of unsorted IPMs
-	 */
-	public static void sortIPMCollection(
-			ArrayList<IndividualPacketManager> unsorted) {
-		Comparator<IndividualPacketManager> compare = new Comparator<IndividualPacketManager>() {
-			public int compare(IndividualPacketManager o1,
-					IndividualPacketManager o2) {
-				return o1.getNumber().compareTo(o2.getNumber());
-			}
-		};
-		Collections.sort(unsorted, compare);
-	}
-
 }
-
@@ -3,127 +3,125 @@
  * @author Nicholas Swafford <s0827481 @ sms.ed.ac.uk>
  * @since 19/02/2012
  * 
- * Same threaded implementation as Sender3.
+ * Unlike Sender3 this sender runs on a single thread. Acknowledgments,
+ * (re)transmissions and time outs are all multiplexed through the
+ * TransportEngine, which sleeps until one of them needs attention.
+ * 
+ * With -streams N the file is split into N stripes that are sent in
+ * parallel, each by its own flow with its own thread, socket, window and
+ * receptor. Flow i sends packets i, i + N, i + 2N and so on to port PORT + i,
+ * numbered 0, 1, 2 within its stripe, and the receiver places every packet
+ * at its offset in the file (see Receiver4).
+ * 
+ * With -resume every flow first asks the receiver which of its packets are
+ * missing after an interrupted transfer, and counts the others as
+ * acknowledged without sending them (see ReceiveJournal). The datagram size
+ * is then the one the receiver has written the file with.
+ * 
+ * With -delta the sender fetches the signatures of the version of the file
+ * the receiver already holds, and sends the instructions of a DeltaEncoder
+ * for rebuilding the file from it instead of the file itself.
  * 
  */
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-
-public class Sender4 {
-	private static int PACKET_SIZE = 1024;
-	private static int HEADER_SIZE = 5;
-	private static int DATA_SIZE = PACKET_SIZE - HEADER_SIZE;
-	private static int FILE_SIZE;
-	private static int ACK_SIZE = 3;
+import java.util.concurrent.ForkJoinTask;
+
+public class Sender4 implements Runnable {
+	private static int PACKET_SIZE;
+	private static int HEADER_SIZE = Utilities.HEADER_SIZE;
+	private static int DATA_SIZE;
+	private static long FILE_SIZE;
+	private static ForkJoinTask<byte[]> MANIFEST;
+	private static ReceiveJournal.Missing[] RESUME;
+	private static boolean COMPRESSED;
+	private static int ACK_SIZE = Utilities.ACK_SIZE;
 	private static int TIMEOUT;
 	private static int WINDOW;
 	private static int PORT;
-	private static DatagramSocket clientSocket;
-	private static int LAST_NUM = -5;
-
-	public static class Receptor implements Runnable {
-		private ArrayList<byte[]> buffer;
-		private int last_acknowledged;
-		private boolean end;
+	private static long TICK_NANOS = 1000000;
+	private static int WHEEL_SIZE = 512;
+	private static double PACING_GAIN = 1.25;
+
+	// State of a single flow
+	private TransportEngine engine;
+	private TimerWheel<IndividualPacketManager> wheel;
+	private RttEstimator rtt;
+	private CongestionControl cc;
+	private Pacer pacer;
+	private boolean pacing;
+	private FecEncoder encoder;
+	private PacketSource source;
+	private ReceiveJournal.Missing missing;
+	private ByteBuffer header_buffer = ByteBuffer.allocateDirect(HEADER_SIZE);
+	private PacketCodec header_codec = new PacketCodec(header_buffer);
+	private int last_num = -5;
+	private long retrans = 0;
+	private Exception error;
+
+	public class Receptor {
+		private AckBitmap acks;
 
 		public Receptor() {
-			this.buffer = new ArrayList<byte[]>();
-			this.last_acknowledged = 0;
-			this.end = false;
-		}
-
-		public void run() {
-			byte[] ack_buffer = new byte[ACK_SIZE];
-			do {
-				try {
-					ack_buffer = new byte[ACK_SIZE];
-					DatagramPacket receivePacket = new DatagramPacket(
-							ack_buffer, ack_buffer.length);
-					clientSocket.receive(receivePacket);
-				} catch (Exception e) {
-				}
-				int ack_num = Utilities.getPacketNum(ack_buffer);
-
-				if (checkForPacket(ack_buffer) == false) {
-					addPacket(ack_buffer);
-
-				}
-
-			} while (!end);
-		}
-
-		public synchronized void stop() {
-			this.end = true;
-		}
-
-		/**
-		 * Allows a synchronized addition to the buffer
-		 * 
-		 * @param packet
-		 *            Packet to add to the buffer
-		 */
-		public synchronized void addPacket(byte[] packet) {
-			buffer.add(packet);
+			this.acks = new AckBitmap(WINDOW, 0);
 		}
 
 		/**
-		 * Checks whether a given packet is contained within the buffer
+		 * Records an acknowledgment received by the transport engine
 		 * 
-		 * @param packet
-		 *            Packet you are looking for
-		 * @return Boolean dependent on the packet's presence
+		 * @param ack_buffer
+		 *            The acknowledgment in byte array form
+		 * @param length
+		 *            The length of the acknowledgment
+		 * @return True if the acknowledgment was new
 		 */
-		public synchronized boolean checkForPacket(byte[] packet) {
-			if (buffer.contains(packet)) {
-				return true;
-			} else {
+		public boolean handleAck(byte[] ack_buffer, int length) {
+			if (length < ACK_SIZE || !Utilities.isAck(ack_buffer)) {
 				return false;
 			}
+			rtt.sample(Utilities.getRttSample(ack_buffer));
+			return acks.markAck(ack_buffer, length);
 		}
-		
+
 		/**
-		 * Verifies whether the buffer contains a particular packet given its
-		 * number
+		 * Verifies whether a particular packet has been acknowledged given
+		 * its number
 		 * 
 		 * @param number
 		 *            The number of the packet you are searching for
-		 * @return Boolean dependent on the packet's presence
+		 * @return Boolean dependent on the packet's acknowledgment
 		 */
-		public synchronized boolean checkForPacketByNumber(int number) {
-			for (byte[] x : buffer) {
-				if (Utilities.getPacketNum(x) == number) {
-					return true;
-				}
-			}
-			return false;
+		public boolean checkForPacketByNumber(int number) {
+			return acks.isAcked(number);
 		}
 
-		// Clear buffer to avoid size issues
-		public synchronized void clearBuffer() {
-			buffer.clear();
-		}
-
-		public synchronized boolean isEnd() {
-			return this.end;
+		/**
+		 * Counts a packet as acknowledged without sending it, since the
+		 * receiver wrote it before the transfer was interrupted
+		 * 
+		 * @param number
+		 *            The packet number, within WINDOW of the base
+		 */
+		public void skip(int number) {
+			acks.mark(number);
 		}
 
-		public synchronized int getLastAck(){
-			return this.last_acknowledged;
+		// Get the number of the first packet that has not been acknowledged
+		public int getBase() {
+			return acks.getBase();
 		}
-
-		public synchronized void incrementLastAck(){
-			this.last_acknowledged++;
-		}		
 	}
 
-	public static class IndividualPacketManager {
-		private byte[] packet_data;
-		private InetAddress ip;
-		private Integer port;
+	public class IndividualPacketManager {
+		private int packet_number;
+		private PacketSource source;
 		private Integer status;
-		private long packet_timeout;
+		private TimerWheel.Timeout<IndividualPacketManager> timer;
+		private int sends;
+		private long armed_timeout;
 
 		/**
 		 * The IndividualPacketManager class includes a variable that keeps
@@ -141,45 +139,92 @@ public class Sender4 {
 		/**
 		 * Constructor for IndividualPacketManager (IPM)
 		 * 
-		 * @param data
-		 *            Packet for this particular IPM to manage
-		 * @param ip
-		 *            IP Address of the packet's destination
-		 * @param port
-		 *            Port number of the packet's destination
+		 * @param number
+		 *            Number of the packet for this particular IPM to manage
+		 * @param source
+		 *            Source the packet's data is read from on every send
 		 */
-		public IndividualPacketManager(byte[] data, InetAddress ip, Integer port) {
-			this.packet_data = data;
-			this.ip = ip;
-			this.port = port;
+		public IndividualPacketManager(int number, PacketSource source) {
+			this.packet_number = number;
+			this.source = source;
 			this.status = 0;
 		}
 
 		/**
-		 * Sends the packet through the given socket
+		 * Sends the packet through the given engine. The header and the
+		 * packet's slice of the file mapping go out in one gathering write.
 		 * 
-		 * @param socket
-		 *            Socket to transfer the data through
+		 * @param engine
+		 *            Engine to transfer the data through
+		 * @return False if the socket buffer was full and the packet has to
+		 *         be sent again later
 		 */
-		public void sendThroughSocket(DatagramSocket socket) {
+		public boolean sendThroughEngine(TransportEngine engine) {
 			try {
-				DatagramPacket packet = new DatagramPacket(packet_data,
-						packet_data.length, ip, port);
-				socket.send(packet);
+				source.writeHeader(packet_number, header_codec);
+				header_codec.stamp(sends > 0);
+				header_codec.seal(source.getData(packet_number));
+				header_buffer.clear();
+				if (engine.send(header_buffer, source.getData(packet_number))) {
+					sends++;
+					if (encoder != null) {
+						encoder.recordSend(sends > 1);
+						if (sends == 1) {
+							encode(engine);
+						}
+					}
+					return true;
+				}
+				return false;
 
 			} catch (Exception e) {
+				// Treat like a lost packet, the time out will resend it
+				return true;
+			}
+		}
 
+		/**
+		 * Folds the packet's first transmission into the current parity
+		 * block. The parity packet of a completed block is sent right away if
+		 * the pacer and the socket buffer have room for it, and dropped
+		 * otherwise since it is never retransmitted.
+		 * 
+		 * @param engine
+		 *            Engine to transfer the parity through
+		 * @throws IOException
+		 */
+		private void encode(TransportEngine engine) throws IOException {
+			int length = encoder.add(packet_number,
+					source.getData(packet_number), source.isLast(packet_number));
+			if (length > 0 && pacer.tryConsume(length)) {
+				engine.send(encoder.getParity(), length);
 			}
 		}
 
 		/**
-		 * Set the time out for this particular packet's acknowledgment
+		 * Set the time out for this particular packet's acknowledgment. The
+		 * timeout is armed on the retransmission timer wheel.
 		 * 
 		 * @param timeout
-		 *            Timeout in milliseconds
+		 *            Timeout in nanoseconds
 		 */
-		public void setTimeout(int timeout) {
-			packet_timeout = System.currentTimeMillis() + timeout;
+		public void setTimeout(long timeout) {
+			armed_timeout = timeout;
+			if (timer == null) {
+				timer = wheel.schedule(this, timeout);
+			} else {
+				wheel.reschedule(timer, timeout);
+			}
+		}
+
+		// Get the timeout the packet's timer was last armed with
+		public long getArmedTimeout() {
+			return armed_timeout;
+		}
+
+		// Cancel the pending time out, e.g. once the packet is acknowledged
+		public void cancelTimeout() {
+			wheel.cancel(timer);
 		}
 
 		// Get the packet's current status
@@ -187,9 +232,9 @@ public class Sender4 {
 			return status;
 		}
 		
-		// Return the time the packet will time out
+		// Return the time (System.nanoTime) the packet will time out
 		public long getTimeout(){
-			return packet_timeout;
+			return timer == null ? 0 : timer.getDeadline();
 		}
 
 		// Set the packet's status
@@ -199,27 +244,20 @@ public class Sender4 {
 
 		// Get the packet's number
 		public Integer getNumber() {
-			return Utilities.getPacketNum(packet_data);
-		}
-
-		// Return the packet managed by this IPM
-		public byte[] getData() {
-			return this.packet_data;
+			return packet_number;
 		}
 
 		// Destroy all data contained within this IPM
 		public void destroy() {
-			this.packet_data = null;
-			this.ip = null;
-			this.port = null;
+			this.source = null;
 			this.status = -3;
-			this.packet_timeout = 0;
+			cancelTimeout();
 		}
 		
 		// Reset the IPM
 		public void reset() {
 			this.status = 0;
-			this.packet_timeout = 0;
+			cancelTimeout();
 		}
 
 	}
@@ -230,16 +268,158 @@ public class Sender4 {
 		String filepath = argv[2];
 		TIMEOUT = Integer.parseInt(argv[3]);
 		WINDOW = Integer.parseInt(argv[4]);
-		FileInputStream inFromUser = new FileInputStream(filepath);
-		clientSocket = new DatagramSocket();
+		int streams = Integer.parseInt(Utilities.getOption(argv, "-streams",
+				"1"));
 		InetAddress IPAddress = InetAddress.getByName(hostname);
 
-		// Initialize acknowledgment receptor
+		// Every flow uses the datagram size settled on the first one's path,
+		// or the one an interrupted transfer was written with
+		BlockSignatures signatures = null;
+		try (DatagramSocket socket = new DatagramSocket()) {
+			int resumed_size = 0;
+			if (Utilities.hasFlag(argv, "-resume")) {
+				RESUME = new ReceiveJournal.Missing[streams];
+				for (int x = 0; x < streams; x++) {
+					RESUME[x] = ReceiveJournal.query(socket, IPAddress, PORT
+							+ x, TIMEOUT);
+					if (RESUME[x] != null && resumed_size == 0) {
+						resumed_size = RESUME[x].getDataSize();
+					}
+				}
+			}
+			if (resumed_size > 0) {
+				PACKET_SIZE = resumed_size + HEADER_SIZE;
+				System.out.println("Resuming with datagram size: "
+						+ PACKET_SIZE);
+			} else {
+				PACKET_SIZE = PathProbe.getPacketSize(argv, socket,
+						IPAddress, PORT, TIMEOUT);
+			}
+			if (Utilities.hasFlag(argv, "-delta")) {
+				signatures = BlockSignatures.fetch(socket, IPAddress, PORT,
+						TIMEOUT, PACKET_SIZE);
+			}
+		}
+		DATA_SIZE = PACKET_SIZE - HEADER_SIZE;
+
+		// Hash the file in the background, its tree is sent after it
+		FILE_SIZE = new File(filepath).length();
+		if (Utilities.hasFlag(argv, "-manifest")) {
+			MANIFEST = Manifest.submit(filepath);
+		}
+
+		// Every flow sends its stripe of the same delta instructions or
+		// compressed blocks
+		String sent_path = filepath;
+		if (signatures != null) {
+			sent_path = DeltaEncoder.encode(filepath, signatures);
+			System.out.println("Delta: " + new File(sent_path).length()
+					+ " bytes instead of " + FILE_SIZE);
+		} else if (Utilities.hasFlag(argv, "-delta")) {
+			System.out.println("Receiver does not take delta transfers");
+		}
+		COMPRESSED = signatures == null
+				&& Utilities.hasFlag(argv, "-compress");
+		if (COMPRESSED) {
+			sent_path = BlockCompressor.compress(filepath);
+		}
+
+		Sender4[] flows = new Sender4[streams];
+		Thread[] threads = new Thread[streams];
+		for (int x = 0; x < streams; x++) {
+			flows[x] = new Sender4(argv, sent_path, x, streams, IPAddress);
+			threads[x] = new Thread(flows[x]);
+		}
+
+		long start_time = System.currentTimeMillis();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		long retrans = 0;
+		for (int x = 0; x < streams; x++) {
+			threads[x].join();
+			if (flows[x].error != null) {
+				throw flows[x].error;
+			}
+			retrans += flows[x].retrans;
+		}
+		
+		double transfer_time = System.currentTimeMillis()*1.0 - start_time*1.0;
+		
+		System.out.println("Complete!");
+		System.out.println("Transfer time in millis: " + transfer_time);
+		System.out.println("Transfer time in seconds: " + (transfer_time/1000.0));
+		System.out.println("Throughput: " + ((FILE_SIZE/1024.0) / (transfer_time/1000.0) ));
+		System.out.println("Retransmissions: " + retrans);
+	}
+
+	/**
+	 * Constructor for a single flow of the transfer
+	 * 
+	 * @param argv
+	 *            The command line, for the optional flags
+	 * @param filepath
+	 *            Path of the file to send
+	 * @param stream
+	 *            Index of the stripe this flow sends
+	 * @param streams
+	 *            Number of stripes the file is split into
+	 * @param ip
+	 *            IP Address of the receiver
+	 * @throws IOException
+	 */
+	public Sender4(String argv[], String filepath, int stream, int streams,
+			InetAddress ip) throws IOException {
+		rtt = new RttEstimator(TIMEOUT, Utilities.hasFlag(argv, "-floor"),
+				Utilities.hasFlag(argv, "-ceiling"));
+
+		// The window argument is only the ceiling for the congestion window
+		if (Utilities.hasFlag(argv, "-vegas")) {
+			cc = new DelayControl(WINDOW);
+		} else {
+			cc = new RenoControl(WINDOW);
+		}
+
+		// Spread the window over a round trip instead of sending it at once
+		pacer = new Pacer(0, PACKET_SIZE);
+		pacing = !Utilities.hasFlag(argv, "-nopace");
+		if (Utilities.hasFlag(argv, "-fec")) {
+			// Send parity so that single losses need no retransmission
+			encoder = new FecEncoder(DATA_SIZE);
+		}
+		source = new PacketSource(filepath, DATA_SIZE, stream, streams);
+		if (RESUME != null) {
+			missing = RESUME[stream];
+		}
+		source.setCompressed(COMPRESSED);
+		if (MANIFEST != null) {
+			source.setTrailer(MANIFEST, Manifest.getTrailerLength(FILE_SIZE));
+		}
+		engine = TransportEngine.connect(ip, PORT + stream);
+		wheel = new TimerWheel<IndividualPacketManager>(TICK_NANOS, WHEEL_SIZE);
+	}
+
+	// Run the flow on its own thread
+	public void run() {
+		try {
+			transfer();
+		} catch (Exception e) {
+			error = e;
+		}
+	}
+
+	/**
+	 * Sends the flow's stripe of the file and waits until all of it has been
+	 * acknowledged
+	 * 
+	 * @throws IOException
+	 */
+	private void transfer() throws IOException {
+		// Initialize retransmission timers and acknowledgment receptor
+		ArrayList<IndividualPacketManager> expired = new ArrayList<IndividualPacketManager>();
 		Receptor receptor = new Receptor();
-		Thread receiver = new Thread(receptor);
-		receiver.start();
+		byte[] ack_buffer = new byte[ACK_SIZE + Utilities.MAX_SACK_BYTES];
 
-		FILE_SIZE = inFromUser.available();
 		int packet_number = 0;
 		boolean eof_ack = false;
 		boolean eof_reached = false;
@@ -250,138 +430,166 @@ public class Sender4 {
 		}
 		ipml.trimToSize();
 		
-		long start_time = System.currentTimeMillis();
-		long retrans = 0;
+		int buffered = 0;
+		int in_flight = 0;
 
 		do {
 			
 			if (!eof_reached) {
 				
-				// Ensure there are only a WINDOW amount of packets buffered
-				while (ipml.contains(null)) {
+				// Ensure there are only as many packets buffered as the
+				// congestion window allows, all within WINDOW of the first
+				// unacknowledged packet so that the receiver's window can
+				// take them
+				while (buffered < cc.getWindow() && Utilities.seqLessThan(
+						packet_number, receptor.getBase() + WINDOW)) {
 					
-					int fni = ipml.indexOf(null);
-					
-					if (inFromUser.available() <= 0) {
-						// This should only trigger if the file size is 0
-						eof_reached = true;
-						break;
+					if (missing != null && !missing.contains(packet_number)) {
+						// Already written by the receiver
+						receptor.skip(packet_number);
+
+					} else if (!receptor.checkForPacketByNumber(packet_number)) {
+						// A receiver that resumes from its journal may have
+						// acknowledged the packet before it was ever sent
+
+						// Every packet in the window has a slot of its own
+						int fni = Integer.remainderUnsigned(packet_number,
+								WINDOW);
+
+						// Packet data stays in the file mapping until it is
+						// sent
+						ipml.set(fni, new IndividualPacketManager(
+								packet_number, source));
+						buffered++;
+					}
 
-					} else if (inFromUser.available() <= DATA_SIZE) {
+					if (source.isLast(packet_number)) {
 						// Reached the end of the file
-						byte[] data = new byte[inFromUser.available()];
-						inFromUser.read(data);
-						byte[] packet = preparePacket(packet_number, data, true);
-						IndividualPacketManager ipm = new IndividualPacketManager(
-								packet, IPAddress, PORT);
-						ipml.set(fni, ipm);
 						eof_reached = true;
-						LAST_NUM = packet_number;
+						last_num = packet_number;
 						packet_number++;
 						break;
 
 					} else {
-						byte[] data = new byte[DATA_SIZE];
-						inFromUser.read(data);
-						byte[] packet = preparePacket(packet_number, data, false);
-						IndividualPacketManager ipm = new IndividualPacketManager(
-								packet, IPAddress, PORT);
-						ipml.set(fni, ipm);
 						packet_number++;
 
 					}
 				}
 			}
 
+			// Take in every acknowledgment that has arrived in the meantime
+			boolean progress = false;
+			int length = engine.receive(ack_buffer);
+			while (length >= 0) {
+				if (receptor.handleAck(ack_buffer, length)) {
+					progress = true;
+				}
+				length = engine.receive(ack_buffer);
+			}
+
 			/**
-			 * Deal with each packet according to its current status. Please
-			 * check the IPM class for details on status codes.
+			 * Deal with each packet according to its current status, in order
+			 * of packet numbers from the base. Please check the IPM class for
+			 * details on status codes. Once a packet has to wait, the ones
+			 * after it wait as well, so that first transmissions always leave
+			 * in order.
 			 */
-			for (int x = 0; x < WINDOW; x++){
-			//for (IndividualPacketManager ipm : ipml) {
+			boolean blocked = false;
+			boolean paced = false;
+			boolean held = false;
+			int acked = 0;
+			int first = Integer.remainderUnsigned(receptor.getBase(), WINDOW);
+			for (int y = 0; y < WINDOW; y++){
+				int x = (first + y) % WINDOW;
 
 				if(ipml.get(x) == null) { 
 					continue; 
 				}
 				
-				if (ipml.get(x).getStatus() == -1) {
-					// Check if the receptor has received an acknowledgment
-					if (receptor.checkForPacketByNumber(ipml.get(x).getNumber())) {
-						// Remove packet from list
-						ipml.set(x, null);
-						
-					} else if (System.currentTimeMillis() > ipml.get(x).getTimeout()) {
-						// Re-send packet
-						ipml.get(x).sendThroughSocket(clientSocket);
-						ipml.get(x).setStatus(-1);
-						ipml.get(x).setTimeout(TIMEOUT);
-						retrans++;
+				if (receptor.checkForPacketByNumber(ipml.get(x).getNumber())) {
+					// Remove acknowledged packet from list
+					if (ipml.get(x).getStatus() == -1) {
+						in_flight--;
 					}
+					ipml.get(x).cancelTimeout();
+					ipml.set(x, null);
+					buffered--;
+					acked++;
+
+				} else if (ipml.get(x).getStatus() == 0 && (held || blocked
+						|| paced || in_flight >= cc.getWindow())) {
+					held = true;
 
 				} else if (ipml.get(x).getStatus() == 0) {
-					// Send virgin packet
-					ipml.get(x).sendThroughSocket(clientSocket);
-					ipml.get(x).setStatus(-1);
-					ipml.get(x).setTimeout(TIMEOUT);
+					// Send virgin packet, unless the pacer holds it back or
+					// the socket buffer is full
+					if (!pacer.tryConsume(PACKET_SIZE)) {
+						paced = true;
+					} else if (ipml.get(x).sendThroughEngine(engine)) {
+						ipml.get(x).setStatus(-1);
+						ipml.get(x).setTimeout(rtt.getTimeoutNanos());
+						in_flight++;
+					} else {
+						blocked = true;
+					}
 
 				}
+			}
+			if (acked > 0) {
+				cc.onAck(acked, rtt.getLatestRtt());
+			}
+			if (pacing && rtt.getSmoothedRtt() > 0) {
+				pacer.setRate(PACING_GAIN * cc.getWindow() * PACKET_SIZE * 1e9
+						/ rtt.getSmoothedRtt());
 			}
 
-			if(receptor.checkForPacketByNumber(receptor.getLastAck())){
-				receptor.incrementLastAck();
-			}
-
-			if (eof_reached && receptor.getLastAck() == LAST_NUM){
+			// Re-send only the packets whose time out has expired
+			expired.clear();
+			wheel.expire(System.nanoTime(), expired);
+			for (IndividualPacketManager ipm : expired) {
+				if (!receptor.checkForPacketByNumber(ipm.getNumber())) {
+					if (rtt.backoff(ipm.getArmedTimeout())) {
+						// First time out of this round
+						cc.onTimeout();
+					}
+					retrans++;
+					in_flight--;
+
+					// Otherwise send it with the virgin packets once there is
+					// room in the socket buffer and the congestion window
+					ipm.setStatus(0);
+					if (!blocked && !paced && in_flight < cc.getWindow()) {
+						if (!pacer.tryConsume(PACKET_SIZE)) {
+							paced = true;
+						} else if (ipm.sendThroughEngine(engine)) {
+							ipm.setStatus(-1);
+							ipm.setTimeout(rtt.getTimeoutNanos());
+							in_flight++;
+						} else {
+							blocked = true;
+						}
+					}
+				}
+			}
+
+			if (eof_reached
+					&& Utilities.seqLessThan(last_num, receptor.getBase())) {
 				eof_ack = true;
+			} else if (!progress) {
+				// Sleep until an acknowledgment, a time out or room to send
+				long wait = wheel.nanosUntilNextExpiry(System.nanoTime());
+				if (paced) {
+					long ready = pacer.nanosUntilReady(PACKET_SIZE);
+					wait = wait < 0 ? ready : Math.min(wait, ready);
+				}
+				engine.await(wait);
 			}
 
 
 		} while (!eof_ack);
 		
-		double transfer_time = System.currentTimeMillis()*1.0 - start_time*1.0;
-		
-		System.out.println("Complete!");
-		System.out.println("Transfer time in millis: " + transfer_time);
-		System.out.println("Transfer time in seconds: " + (transfer_time/1000.0));
-		System.out.println("Throughput: " + ((FILE_SIZE/1024.0) / (transfer_time/1000.0) ));
-		System.out.println("Retransmissions: " + retrans);
-		
-		receiver.interrupt();
-		receiver.join();
-		clientSocket.close();
-	}
-
-	/**
-	 * Prepares a packet for transfer
-	 * 
-	 * @param packet_number
-	 *            Number of the particular packet
-	 * @param data
-	 *            File data to transfer
-	 * @param eof
-	 *            Whether or not the packet is the end-of-file
-	 * @return A packet in byte array form to be used in transfer
-	 */
-	public static byte[] preparePacket(int packet_number, byte[] data,
-			boolean eof) {
-		byte[] head = new byte[HEADER_SIZE];
-
-		byte[] num = Utilities.intToBytes(packet_number);
-		byte[] len = Utilities.intToBytes(data.length);
-
-		head[0] = num[0];
-		head[1] = num[1];
-
-		if (eof == true) {
-			head[2] = (byte) 1;
-		} else {
-			head[2] = (byte) 0;
-		}
-
-		head[3] = len[0];
-		head[4] = len[1];
-
-		return Utilities.concatArray(head, data);
+		source.close();
+		engine.close();
 	}
 
 }
@@ -0,0 +1,205 @@
+/**
+ * 
+ * Hashed timer wheel for retransmission timeouts. Time is divided into ticks
+ * and every timeout is hashed into the bucket of the tick it expires on, so
+ * arming and cancelling a timeout are constant time and expiring only ever
+ * touches the buckets of the ticks that have passed. Timeouts further away
+ * than one turn of the wheel wait out the extra turns in their bucket.
+ * 
+ * Time is taken from System.nanoTime(). The wheel is not thread-safe and is
+ * meant to be driven by the sending thread alone.
+ * 
+ */
+
+import java.util.ArrayList;
+
+public class TimerWheel<T> {
+
+	public static class Timeout<T> {
+		private T item;
+		private long deadline;
+		private long rounds;
+		private int bucket;
+		private Timeout<T> prev;
+		private Timeout<T> next;
+		private boolean armed;
+
+		private Timeout(T item) {
+			this.item = item;
+		}
+
+		// Get the item this timeout was scheduled for
+		public T getItem() {
+			return item;
+		}
+
+		// Get the time (System.nanoTime) at which the timeout expires
+		public long getDeadline() {
+			return deadline;
+		}
+
+		// Whether the timeout is still waiting to expire
+		public boolean isArmed() {
+			return armed;
+		}
+	}
+
+	private ArrayList<Timeout<T>> buckets;
+	private long tick_nanos;
+	private int mask;
+	private long start;
+	private long current_tick;
+	private int pending;
+
+	/**
+	 * Constructor for TimerWheel
+	 * 
+	 * @param tick_nanos
+	 *            Length of one tick in nanoseconds, i.e. the timer precision
+	 * @param wheel_size
+	 *            Number of buckets, rounded up to a power of two
+	 */
+	public TimerWheel(long tick_nanos, int wheel_size) {
+		int size = Integer.highestOneBit(Math.max(1, wheel_size - 1)) << 1;
+		this.buckets = new ArrayList<Timeout<T>>(size);
+		for (int x = 0; x < size; x++) {
+			buckets.add(null);
+		}
+		this.tick_nanos = tick_nanos;
+		this.mask = size - 1;
+		this.start = System.nanoTime();
+		this.current_tick = 0;
+		this.pending = 0;
+	}
+
+	/**
+	 * Arms a timeout for the given item
+	 * 
+	 * @param item
+	 *            The item to hand back once the timeout expires
+	 * @param delay_nanos
+	 *            Time until expiry in nanoseconds
+	 * @return A handle that can be used to cancel the timeout
+	 */
+	public Timeout<T> schedule(T item, long delay_nanos) {
+		Timeout<T> timeout = new Timeout<T>(item);
+		reschedule(timeout, delay_nanos);
+		return timeout;
+	}
+
+	/**
+	 * Re-arms an existing timeout, cancelling it first if it is still armed.
+	 * Reusing the handle avoids an allocation on every retransmission.
+	 * 
+	 * @param timeout
+	 *            Handle returned by schedule()
+	 * @param delay_nanos
+	 *            Time until expiry in nanoseconds
+	 */
+	public void reschedule(Timeout<T> timeout, long delay_nanos) {
+		cancel(timeout);
+		timeout.deadline = System.nanoTime() + delay_nanos;
+
+		// Round up so that a timeout never fires before its deadline
+		long tick = (timeout.deadline - start + tick_nanos - 1) / tick_nanos;
+		if (tick <= current_tick) {
+			tick = current_tick + 1;
+		}
+		timeout.rounds = (tick - current_tick - 1) / buckets.size();
+		timeout.bucket = (int) (tick & mask);
+
+		Timeout<T> head = buckets.get(timeout.bucket);
+		timeout.prev = null;
+		timeout.next = head;
+		if (head != null) {
+			head.prev = timeout;
+		}
+		buckets.set(timeout.bucket, timeout);
+		timeout.armed = true;
+		pending++;
+	}
+
+	/**
+	 * Cancels a timeout so that it never expires
+	 * 
+	 * @param timeout
+	 *            Handle returned by schedule(), may be null
+	 */
+	public void cancel(Timeout<T> timeout) {
+		if (timeout == null || !timeout.armed) {
+			return;
+		}
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			buckets.set(timeout.bucket, timeout.next);
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.armed = false;
+		pending--;
+	}
+
+	/**
+	 * Advances the wheel to the given time and collects the items of every
+	 * timeout that has expired on the way
+	 * 
+	 * @param now
+	 *            The current System.nanoTime()
+	 * @param expired
+	 *            List the expired items are added to
+	 */
+	public void expire(long now, ArrayList<T> expired) {
+		long target = (now - start) / tick_nanos;
+		while (current_tick < target && pending > 0) {
+			current_tick++;
+			Timeout<T> timeout = buckets.get((int) (current_tick & mask));
+			while (timeout != null) {
+				Timeout<T> next = timeout.next;
+				if (timeout.rounds > 0) {
+					timeout.rounds--;
+				} else {
+					cancel(timeout);
+					expired.add(timeout.item);
+				}
+				timeout = next;
+			}
+		}
+		if (current_tick < target) {
+			// Nothing is pending, so the empty ticks can be skipped
+			current_tick = target;
+		}
+	}
+
+	/**
+	 * Estimates how long the caller can sleep before the next timeout is due.
+	 * Only the buckets of one turn of the wheel are looked at, so the result
+	 * may be early but never late.
+	 * 
+	 * @param now
+	 *            The current System.nanoTime()
+	 * @return Nanoseconds until the next non-empty tick, or -1 if no timeout
+	 *         is armed
+	 */
+	public long nanosUntilNextExpiry(long now) {
+		if (pending == 0) {
+			return -1;
+		}
+		for (long tick = current_tick + 1; tick <= current_tick
+				+ buckets.size(); tick++) {
+			if (buckets.get((int) (tick & mask)) != null) {
+				return Math.max(0, start + tick * tick_nanos - now);
+			}
+		}
+		return Math.max(0, start + (current_tick + buckets.size())
+				* tick_nanos - now);
+	}
+
+	// Get the number of armed timeouts
+	public int size() {
+		return pending;
+	}
+}
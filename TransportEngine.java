@@ -0,0 +1,232 @@
+/**
+ * 
+ * Single-threaded, non-blocking transport built on a DatagramChannel and a
+ * Selector. One thread can wait on acknowledgments, data and its own timers
+ * at the same time: await() sleeps until a datagram arrives, a blocked send
+ * can go ahead, or the given timeout passes. Datagrams are received into a
+ * single reusable direct buffer and sent with gathering writes, so a packet's
+ * header and data can go out without first being copied into one array.
+ * 
+ * A sender connects the channel to the receiver straight away; a receiver
+ * binds to its port and connects to the first sender it hears from. A
+ * receiver serving many senders at once stays unconnected and addresses
+ * every datagram it sends with sendTo().
+ * 
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+public class TransportEngine {
+	private static int MAX_DATAGRAM = 65507;
+
+	private DatagramChannel channel;
+	private Selector selector;
+	private SelectionKey key;
+	private ByteBuffer receive_buffer;
+	private SocketAddress last_source;
+	private boolean write_blocked;
+
+	/**
+	 * Opens an engine connected to a remote host, as used by senders
+	 * 
+	 * @param ip
+	 *            IP address of the receiver
+	 * @param port
+	 *            Port number of the receiver
+	 * @return The engine
+	 * @throws IOException
+	 */
+	public static TransportEngine connect(InetAddress ip, int port)
+			throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.connect(new InetSocketAddress(ip, port));
+		return new TransportEngine(channel);
+	}
+
+	/**
+	 * Opens an engine bound to a local port, as used by receivers
+	 * 
+	 * @param port
+	 *            Port number to listen on
+	 * @return The engine
+	 * @throws IOException
+	 */
+	public static TransportEngine bind(int port) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		return new TransportEngine(channel);
+	}
+
+	private TransportEngine(DatagramChannel channel) throws IOException {
+		this.channel = channel;
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.key = channel.register(selector, SelectionKey.OP_READ);
+		this.receive_buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+		this.write_blocked = false;
+	}
+
+	/**
+	 * Connects the channel to the given peer so that datagrams from anyone
+	 * else are ignored from now on
+	 * 
+	 * @param remote
+	 *            Address of the peer
+	 * @throws IOException
+	 */
+	public void connectTo(SocketAddress remote) throws IOException {
+		channel.connect(remote);
+	}
+
+	// Whether the channel has been connected to a peer
+	public boolean isConnected() {
+		return channel.isConnected();
+	}
+
+	/**
+	 * Blocks until a datagram can be received, a previously blocked send can
+	 * be retried, or the timeout has passed
+	 * 
+	 * @param nanos
+	 *            Maximum time to wait in nanoseconds, zero to only poll, or a
+	 *            negative value to wait without a timeout
+	 * @throws IOException
+	 */
+	public void await(long nanos) throws IOException {
+		int ops = SelectionKey.OP_READ;
+		if (write_blocked) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		key.interestOps(ops);
+
+		if (nanos < 0) {
+			selector.select();
+		} else if (nanos == 0) {
+			selector.selectNow();
+		} else {
+			// Round up, as select(0) would wait forever
+			selector.select((nanos + 999999) / 1000000);
+		}
+		if (key.isValid() && key.isWritable()) {
+			write_blocked = false;
+		}
+		selector.selectedKeys().clear();
+	}
+
+	/**
+	 * Receives a single datagram without blocking
+	 * 
+	 * @param dest
+	 *            Array the datagram is copied into; longer datagrams are
+	 *            truncated
+	 * @return The length of the datagram, or -1 if none was waiting
+	 * @throws IOException
+	 */
+	public int receive(byte[] dest) throws IOException {
+		receive_buffer.clear();
+		try {
+			last_source = channel.receive(receive_buffer);
+		} catch (PortUnreachableException e) {
+			// The peer is not listening (yet), which is the same as silence
+			return -1;
+		}
+		if (last_source == null) {
+			return -1;
+		}
+		receive_buffer.flip();
+		int length = Math.min(receive_buffer.remaining(), dest.length);
+		receive_buffer.get(dest, 0, length);
+		return length;
+	}
+
+	// Get the address the last received datagram came from
+	public SocketAddress getLastSource() {
+		return last_source;
+	}
+
+	/**
+	 * Sends the given buffers as a single datagram to the connected peer
+	 * 
+	 * @param parts
+	 *            Buffers making up the datagram, e.g. a header and its data
+	 * @return False if the socket buffer is full and the datagram was not
+	 *         sent; await() then also wakes up once it can be retried
+	 * @throws IOException
+	 */
+	public boolean send(ByteBuffer... parts) throws IOException {
+		long sent;
+		try {
+			sent = channel.write(parts);
+		} catch (PortUnreachableException e) {
+			// Treat like a lost datagram and let the retransmission repair it
+			return true;
+		}
+		if (sent == 0 && hasRemaining(parts)) {
+			write_blocked = true;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sends part of an array as a single datagram to the connected peer
+	 * 
+	 * @param data
+	 *            The datagram in byte array form
+	 * @param length
+	 *            Number of bytes of the array to send
+	 * @return False if the socket buffer is full and the datagram was not
+	 *         sent
+	 * @throws IOException
+	 */
+	public boolean send(byte[] data, int length) throws IOException {
+		return send(ByteBuffer.wrap(data, 0, length));
+	}
+
+	/**
+	 * Sends part of an array as a single datagram to the given peer, on a
+	 * channel that is not connected
+	 * 
+	 * @param data
+	 *            The datagram in byte array form
+	 * @param length
+	 *            Number of bytes of the array to send
+	 * @param target
+	 *            Address of the peer
+	 * @return False if the socket buffer is full and the datagram was not
+	 *         sent
+	 * @throws IOException
+	 */
+	public boolean sendTo(byte[] data, int length, SocketAddress target)
+			throws IOException {
+		if (channel.send(ByteBuffer.wrap(data, 0, length), target) == 0) {
+			write_blocked = true;
+			return false;
+		}
+		return true;
+	}
+
+	// Release the selector and the channel
+	public void close() throws IOException {
+		selector.close();
+		channel.close();
+	}
+
+	// Whether any of the buffers still has data to send
+	private static boolean hasRemaining(ByteBuffer[] parts) {
+		for (ByteBuffer part : parts) {
+			if (part.hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
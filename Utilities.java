@@ -5,33 +5,89 @@
  * 
  */
 
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
 
 public class Utilities {
 	/**
-	 * Converts an integer into an array of two bytes
+	 * Every datagram starts with the same versioned header so that a sender
+	 * and receiver built from different revisions refuse each other's packets
+	 * instead of silently misreading them. The layout (network byte order) is:
 	 * 
-	 * Courtesy of user MichaelTague, 15 November 2007. Available at:
-	 * http://snippets.dzone.com/posts/show/93
+	 *  0		Header version (HEADER_VERSION)
+	 *  1		Flags (FLAG_EOF, FLAG_ACK)
+	 *  2-5		Packet number, unsigned 32 bit with serial-number wraparound
+	 *  6-7		Length of the file data carried by the packet
+	 *  8-11	Send time in microseconds, see stampPacket()
+	 *  12-15	CRC32C of bytes 0-11 and the file data, see writeChecksum()
 	 * 
-	 * @param i
-	 *            Integer for conversion
-	 * @return A byte array representation of the integer
+	 * The checksum is computed last, right before every transmission, so it
+	 * also covers the send time and flags. Receivers drop data and parity
+	 * packets whose checksum does not match without acknowledging them, and
+	 * the sender's retransmission repairs them like any other loss.
+	 * 
+	 * Acknowledgments carry the first six bytes, followed by the send time
+	 * of the packet that triggered them in bytes 6-9. An acknowledgment also
+	 * echoes FLAG_RETRANS, so that the sender can leave retransmitted packets
+	 * out of its round-trip time estimate (Karn's rule).
+	 * 
+	 * A selective acknowledgment (FLAG_SACK) has the same layout, but its
+	 * packet number is cumulative: every packet before it has arrived. A
+	 * bitmap of the packets received out of order may follow from byte 10,
+	 * where bit i (most significant bit first) stands for packet number
+	 * cumulative + 1 + i. The bitmap ends after its last set bit.
+	 * 
+	 * A parity packet (FLAG_PARITY) carries the XOR of a block of data
+	 * packets for forward error correction. Bytes 2-5 hold the number of the
+	 * first packet of the block and bytes 6-7 the length of the XOR that
+	 * follows the header. Bytes 8-11 are used as:
+	 * 
+	 *  8		Number of data packets in the block
+	 *  9		XOR of the data packets' FLAG_EOF bits
+	 *  10-11	XOR of the data packets' lengths
+	 * 
+	 * A probe (FLAG_PROBE) is padded to the datagram size it tests, which is
+	 * also given in bytes 2-5. The receiver answers every probe that arrives
+	 * whole with an acknowledgment that has FLAG_PROBE set as well and the
+	 * size in bytes 2-5, see PathProbe. Probe answers are not
+	 * acknowledgments of file data. A probe that also has FLAG_SACK set is a
+	 * resume query instead, see ReceiveJournal.
+	 * 
+	 * The data of a packet flagged FLAG_COMPRESSED is part of a stream of
+	 * tagged blocks rather than of the file, see BlockCompressor. Either
+	 * every data packet of a transfer has the flag or none has. The same
+	 * holds for FLAG_MANIFEST, which means that what is sent ends in the
+	 * trailer of a Manifest.
+	 * 
+	 * Data packets may be up to MAX_PACKET_SIZE bytes long, the UDP payload
+	 * of a 9000 byte jumbo frame, so every receive buffer has that size. All
+	 * packets of a transfer but the last one are the same size.
 	 */
-	public static byte[] intToBytes(int i) {
-		return new byte[] {
-				// (byte) (value >>> 24),
-				// (byte) (value >>> 16),
-				(byte) (i >>> 8), (byte) i };
-	}
+	public static final int HEADER_VERSION = 4;
+	public static final int HEADER_SIZE = 16;
+	public static final int CHECKSUM_OFFSET = 12;
+	public static final int ACK_SIZE = 10;
+	public static final byte FLAG_EOF = 0x01;
+	public static final byte FLAG_ACK = 0x02;
+	public static final byte FLAG_RETRANS = 0x04;
+	public static final byte FLAG_SACK = 0x08;
+	public static final byte FLAG_PARITY = 0x10;
+	public static final byte FLAG_PROBE = 0x20;
+	public static final byte FLAG_COMPRESSED = 0x40;
+	public static final byte FLAG_MANIFEST = (byte) 0x80;
+	public static final int MAX_PACKET_SIZE = 8972;
+	public static final int DEFAULT_PACKET_SIZE = 1024;
+	public static final int MAX_SACK_BYTES = 128;
+
+	// CRC32C is intrinsified, one instance per thread avoids allocating
+	private static ThreadLocal<CRC32C> checksums = new ThreadLocal<CRC32C>() {
+		protected CRC32C initialValue() {
+			return new CRC32C();
+		}
+	};
 
 	/**
-	 * Converts two bytes into an integer
+	 * Converts two bytes into an unsigned integer
 	 * 
 	 * @param b1
 	 *            The first byte in the array
@@ -40,7 +96,244 @@ public class Utilities {
 	 * @return The integer value of both bytes
 	 */
 	public static int bytesToInt(byte b1, byte b0) {
-		return (b1 << 8) + (b0 & 0xFF);
+		return ((b1 & 0xFF) << 8) + (b0 & 0xFF);
+	}
+
+	/**
+	 * Writes a 32 bit packet number into a byte array
+	 * 
+	 * @param b
+	 *            The array to write into
+	 * @param offset
+	 *            Index of the most significant byte
+	 * @param seq
+	 *            The packet number
+	 */
+	public static void putSeq(byte[] b, int offset, int seq) {
+		b[offset] = (byte) (seq >>> 24);
+		b[offset + 1] = (byte) (seq >>> 16);
+		b[offset + 2] = (byte) (seq >>> 8);
+		b[offset + 3] = (byte) seq;
+	}
+
+	/**
+	 * Reads a 32 bit packet number from a byte array
+	 * 
+	 * @param b
+	 *            The array to read from
+	 * @param offset
+	 *            Index of the most significant byte
+	 * @return The packet number
+	 */
+	public static int getSeq(byte[] b, int offset) {
+		return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+				| ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * Compares two packet numbers using serial-number arithmetic (RFC 1982),
+	 * so that the comparison stays correct once the numbers wrap around.
+	 * 
+	 * @param a
+	 *            The first packet number
+	 * @param b
+	 *            The second packet number
+	 * @return A negative value if a comes before b, zero if they are equal
+	 *         and a positive value if a comes after b
+	 */
+	public static int seqCompare(int a, int b) {
+		return a - b;
+	}
+
+	// Whether packet number a comes before packet number b
+	public static boolean seqLessThan(int a, int b) {
+		return seqCompare(a, b) < 0;
+	}
+
+	/**
+	 * Computes the byte offset of a packet within the transferred file
+	 * 
+	 * @param seq
+	 *            The packet number
+	 * @param data_size
+	 *            The amount of file data carried by every full packet
+	 * @return The offset of the packet's first data byte in the file
+	 */
+	public static long fileOffset(int seq, int data_size) {
+		return (seq & 0xFFFFFFFFL) * data_size;
+	}
+
+	/**
+	 * Builds the header of a data packet
+	 * 
+	 * @param packet_number
+	 *            Number of the particular packet
+	 * @param length
+	 *            Amount of file data carried by the packet
+	 * @param eof
+	 *            Whether or not the packet is the end-of-file
+	 * @return The header in byte array form
+	 */
+	public static byte[] createHeader(int packet_number, int length,
+			boolean eof) {
+		byte[] head = new byte[HEADER_SIZE];
+		writeHeader(head, packet_number, length, eof);
+		return head;
+	}
+
+	/**
+	 * Writes the header for a particular packet in place
+	 * 
+	 * @param head
+	 *            Array to write into, the header takes its first HEADER_SIZE
+	 *            bytes
+	 * @param packet_number
+	 *            Number of the particular packet
+	 * @param length
+	 *            Amount of file data carried by the packet
+	 * @param eof
+	 *            Whether or not the packet is the end-of-file
+	 */
+	public static void writeHeader(byte[] head, int packet_number,
+			int length, boolean eof) {
+		head[0] = (byte) HEADER_VERSION;
+		if (eof == true) {
+			head[1] = FLAG_EOF;
+		} else {
+			head[1] = (byte) 0;
+		}
+		putSeq(head, 2, packet_number);
+		head[6] = (byte) (length >>> 8);
+		head[7] = (byte) length;
+		putSeq(head, 8, 0);
+		putSeq(head, CHECKSUM_OFFSET, 0);
+	}
+
+	/**
+	 * Stamps a data packet with the current time right before it is sent
+	 * 
+	 * @param packet
+	 *            A packet in byte array form
+	 * @param retransmission
+	 *            Whether the packet has been sent before
+	 */
+	public static void stampPacket(byte[] packet, boolean retransmission) {
+		putSeq(packet, 8, timestamp());
+		if (retransmission == true) {
+			packet[1] |= FLAG_RETRANS;
+		} else {
+			packet[1] &= ~FLAG_RETRANS;
+		}
+	}
+
+	/**
+	 * Computes the checksum of a packet whose header and data are held in
+	 * separate buffers. Neither buffer's position or limit is changed.
+	 * 
+	 * @param header
+	 *            Buffer holding the header from index 0
+	 * @param data
+	 *            The packet's file data, from its position to its limit
+	 * @return CRC32C of the header up to the checksum field and the data
+	 */
+	public static int checksum(ByteBuffer header, ByteBuffer data) {
+		CRC32C crc = checksums.get();
+		crc.reset();
+		int position = header.position();
+		int limit = header.limit();
+		header.limit(CHECKSUM_OFFSET).position(0);
+		crc.update(header);
+		header.limit(limit).position(position);
+		position = data.position();
+		crc.update(data);
+		data.position(position);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Computes the checksum of a packet held in a single array
+	 * 
+	 * @param packet
+	 *            A packet in byte array form, its data length has to fit
+	 *            into the array
+	 * @return CRC32C of the header up to the checksum field and the data
+	 */
+	public static int checksum(byte[] packet) {
+		CRC32C crc = checksums.get();
+		crc.reset();
+		crc.update(packet, 0, CHECKSUM_OFFSET);
+		crc.update(packet, HEADER_SIZE, getDataLength(packet));
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Writes the checksum of a data or parity packet into its header, once
+	 * every other header field is final
+	 * 
+	 * @param packet
+	 *            A packet in byte array form
+	 */
+	public static void writeChecksum(byte[] packet) {
+		putSeq(packet, CHECKSUM_OFFSET, checksum(packet));
+	}
+
+	/**
+	 * Checks whether a data or parity packet arrived intact
+	 * 
+	 * @param packet
+	 *            A packet in byte array form
+	 * @param length
+	 *            The length of the received datagram
+	 * @return True if the packet holds all of its data and the checksum
+	 *         matches
+	 */
+	public static boolean isIntact(byte[] packet, int length) {
+		return length >= HEADER_SIZE
+				&& HEADER_SIZE + getDataLength(packet) <= length
+				&& getSeq(packet, CHECKSUM_OFFSET) == checksum(packet);
+	}
+
+	// The current time in microseconds, wrapping around every 71 minutes
+	public static int timestamp() {
+		return (int) (System.nanoTime() / 1000);
+	}
+
+	/**
+	 * Measures the round-trip time of the packet an acknowledgment answers
+	 * 
+	 * @param ack
+	 *            An acknowledgment in byte array form
+	 * @return The round-trip time in nanoseconds, or -1 if the acknowledged
+	 *         packet was a retransmission and must not be sampled
+	 */
+	public static long getRttSample(byte[] ack) {
+		if ((ack[1] & FLAG_RETRANS) != 0) {
+			return -1;
+		}
+		return (timestamp() - getSeq(ack, 6)) * 1000L;
+	}
+
+	/**
+	 * Checks whether a packet was built with the header version this program
+	 * understands
+	 * 
+	 * @param input
+	 *            A packet in byte array form
+	 * @return True if the header version matches HEADER_VERSION
+	 */
+	public static boolean isValidHeader(byte[] input) {
+		return input.length >= ACK_SIZE && input[0] == (byte) HEADER_VERSION;
+	}
+
+	/**
+	 * Retrieves the length of the file data carried by a packet
+	 * 
+	 * @param input
+	 *            A packet in byte array form
+	 * @return The number of data bytes following the header
+	 */
+	public static int getDataLength(byte[] input) {
+		return bytesToInt(input[6], input[7]);
 	}
 
 	/**
@@ -48,14 +341,11 @@ public class Utilities {
 	 * 
 	 * @param input
 	 *            A packet in byte array form
-	 * @return The file data of the packet, assuming it had a 5 byte sized
-	 *         header
+	 * @return The file data of the packet, as declared by its header
 	 */
 	public static byte[] getData(byte[] input) {
-		byte[] output = new byte[input.length - 5];
-		for (int i = 5; i < input.length; i++) {
-			output[i - 5] = input[i];
-		}
+		byte[] output = new byte[getDataLength(input)];
+		System.arraycopy(input, HEADER_SIZE, output, 0, output.length);
 		return output;
 	}
 
@@ -67,7 +357,7 @@ public class Utilities {
 	 * @return The packet number for the input
 	 */
 	public static int getPacketNum(byte[] input) {
-		return bytesToInt(input[0], input[1]);
+		return getSeq(input, 2);
 	}
 
 	/**
@@ -75,10 +365,10 @@ public class Utilities {
 	 * 
 	 * @param input
 	 *            A packet in byte array form
-	 * @return
+	 * @return True if the end-of-file flag is set
 	 */
 	public static boolean isEOF(byte[] input) {
-		if ((int) input[2] == 1) {
+		if ((input[1] & FLAG_EOF) != 0) {
 			return true;
 		} else {
 			return false;
@@ -86,94 +376,219 @@ public class Utilities {
 	}
 
 	/**
-	 * Concatenates two byte arrays into a new byte array
+	 * Writes the header of a parity packet
 	 * 
-	 * @param h
-	 *            Serves as the head of the output array
-	 * @param t
-	 *            Serves as the tail of the output array
-	 * @return A concatenated byte array consisting of both inputs
+	 * @param parity
+	 *            The parity packet in byte array form
+	 * @param start
+	 *            Number of the first data packet in the block
+	 * @param block
+	 *            Number of data packets in the block
+	 * @param length
+	 *            Length of the XOR following the header
+	 * @param length_xor
+	 *            XOR of the data packets' lengths
+	 * @param flags_xor
+	 *            XOR of the data packets' FLAG_EOF bits
 	 */
-	public static byte[] concatArray(byte[] h, byte[] t) {
-		byte[] output = new byte[h.length + t.length];
-		System.arraycopy(h, 0, output, 0, h.length);
-		System.arraycopy(t, 0, output, h.length, t.length);
-		return output;
+	public static void writeParityHeader(byte[] parity, int start,
+			int block, int length, int length_xor, int flags_xor) {
+		parity[0] = (byte) HEADER_VERSION;
+		parity[1] = FLAG_PARITY;
+		putSeq(parity, 2, start);
+		parity[6] = (byte) (length >>> 8);
+		parity[7] = (byte) length;
+		parity[8] = (byte) block;
+		parity[9] = (byte) flags_xor;
+		parity[10] = (byte) (length_xor >>> 8);
+		parity[11] = (byte) length_xor;
 	}
 
 	/**
-	 * Adjusts the packet size to the actual size of the data transmitted
+	 * Checks whether a datagram is a path probe or the answer to one
 	 * 
-	 * @param b
-	 *            The packet in byte array form
-	 * @return A new and adjusted copy of the packet
-	 */
-	public static byte[] cleanUpEOF(byte[] b) {
-		/* Size of the data plus the size of the header */
-		int size = bytesToInt(b[3], b[4]) + 5;
-		byte[] output = new byte[size];
-		
-		for (int x = 0; x < size; x++) {
-			output[x] = b[x];
-			
-		}
-		return output;
+	 * @param input
+	 *            A datagram in byte array form
+	 * @return True if the probe flag is set
+	 */
+	public static boolean isProbe(byte[] input) {
+		return (input[1] & FLAG_PROBE) != 0;
 	}
 
 	/**
-	 * Sort an ArrayList of datagram packets according to their packet number
+	 * Checks whether a packet is a parity packet rather than file data
 	 * 
-	 * @param unsorted
-	 *            An unsorted ArrayList of packets in byte array form
-	 * @return Sorted version of the input
+	 * @param input
+	 *            A packet in byte array form
+	 * @return True if the parity flag is set
 	 */
-	public static ArrayList<byte[]> sortyByPacketNumber(
-			ArrayList<byte[]> unsorted) {
-		ArrayList<byte[]> output = unsorted;
-		Comparator<byte[]> compare = new Comparator<byte[]>() {
-			public int compare(byte[] o1, byte[] o2) {
-				Integer o1_num = bytesToInt(o1[0], o1[1]);
-				Integer o2_num = bytesToInt(o2[0], o2[1]);
-				return o1_num.compareTo(o2_num);
-			}
-		};
-		Collections.sort(output, compare);
-		return output;
+	public static boolean isParity(byte[] input) {
+		return (input[1] & FLAG_PARITY) != 0;
+	}
+
+	/**
+	 * Checks whether a packet carries compressed blocks rather than file
+	 * data
+	 * 
+	 * @param input
+	 *            A packet in byte array form
+	 * @return True if the compressed flag is set
+	 */
+	public static boolean isCompressed(byte[] input) {
+		return (input[1] & FLAG_COMPRESSED) != 0;
+	}
+
+	/**
+	 * Checks whether a packet belongs to a transfer that ends in a manifest
+	 * 
+	 * @param input
+	 *            A packet in byte array form
+	 * @return True if the manifest flag is set
+	 */
+	public static boolean hasManifest(byte[] input) {
+		return (input[1] & FLAG_MANIFEST) != 0;
+	}
+
+	/**
+	 * Checks whether a datagram is a valid acknowledgment
+	 * 
+	 * @param input
+	 *            A datagram in byte array form
+	 * @return True if the header version matches and the ack flag is set
+	 */
+	public static boolean isAck(byte[] input) {
+		return isValidHeader(input) && (input[1] & FLAG_ACK) != 0
+				&& (input[1] & FLAG_PROBE) == 0;
+	}
+
+	/**
+	 * Checks whether an acknowledgment is a cumulative, selective one
+	 * 
+	 * @param input
+	 *            An acknowledgment in byte array form
+	 * @return True if the selective acknowledgment flag is set
+	 */
+	public static boolean isSack(byte[] input) {
+		return (input[1] & FLAG_SACK) != 0;
+	}
+
+	/**
+	 * Checks whether a selective acknowledgment reports a packet as received
+	 * out of order
+	 * 
+	 * @param ack
+	 *            A selective acknowledgment in byte array form
+	 * @param length
+	 *            The length of the acknowledgment
+	 * @param index
+	 *            Position in the bitmap, i.e. the packet number minus the
+	 *            cumulative packet number minus one
+	 * @return True if the bit is set
+	 */
+	public static boolean getSackBit(byte[] ack, int length, int index) {
+		int b = ACK_SIZE + (index >>> 3);
+		return b < length && (ack[b] & (0x80 >>> (index & 7))) != 0;
+	}
+
+	/**
+	 * Writes the fixed part of a selective acknowledgment into an existing
+	 * array. Out-of-order packets are then added with addSackBit().
+	 * 
+	 * @param ack
+	 *            Array of at least ACK_SIZE bytes
+	 * @param cumulative
+	 *            Number of the first packet that has not arrived yet
+	 * @param packet
+	 *            The received packet whose send time is echoed
+	 * @return The length of the acknowledgment so far
+	 */
+	public static int writeSack(byte[] ack, int cumulative, byte[] packet) {
+		writeAck(ack, cumulative, packet);
+		ack[1] |= FLAG_SACK;
+		return ACK_SIZE;
 	}
 
 	/**
-	 * Create and return an acknowledgement packet
+	 * Adds an out-of-order packet to a selective acknowledgment. Packets
+	 * that do not fit into the array are left out; the sender will learn
+	 * about them from a later acknowledgment.
 	 * 
+	 * @param ack
+	 *            A selective acknowledgment being written
+	 * @param length
+	 *            The length of the acknowledgment so far
+	 * @param index
+	 *            Position in the bitmap, i.e. the packet number minus the
+	 *            cumulative packet number minus one
+	 * @return The new length of the acknowledgment
+	 */
+	public static int addSackBit(byte[] ack, int length, int index) {
+		int b = ACK_SIZE + (index >>> 3);
+		if (b >= ack.length) {
+			return length;
+		}
+		while (length <= b) {
+			ack[length++] = 0;
+		}
+		ack[b] |= (byte) (0x80 >>> (index & 7));
+		return length;
+	}
+
+	/**
+	 * Writes an acknowledgment into an existing array, so that senders of
+	 * many acknowledgments can reuse a single buffer
+	 * 
+	 * @param ack
+	 *            Array of at least ACK_SIZE bytes
 	 * @param packet_number
 	 *            Packet number you wish to acknowledge
-	 * @param src_ip
-	 *            InetAddress of the original sender
-	 * @param src_port
-	 *            Port number of the original sender
-	 * @return DatagramPacket object ready for transfer
-	 */
-	public static DatagramPacket createAckPacket(int packet_number,
-			InetAddress src_ip, int src_port) {
-		byte[] confirm = { (byte) 1 };
-		byte[] ack = Utilities.concatArray(Utilities.intToBytes(packet_number),
-				confirm);
-		DatagramPacket ack_packet = new DatagramPacket(ack, ack.length, src_ip,
-				src_port);
-		return ack_packet;
+	 * @param packet
+	 *            The received packet whose send time is echoed
+	 * @return The length of the acknowledgment
+	 */
+	public static int writeAck(byte[] ack, int packet_number, byte[] packet) {
+		ack[0] = (byte) HEADER_VERSION;
+		ack[1] = (byte) (FLAG_ACK | (packet[1] & FLAG_RETRANS));
+		putSeq(ack, 2, packet_number);
+		System.arraycopy(packet, 8, ack, 6, 4);
+		return ACK_SIZE;
 	}
 	
 	/**
-	 * A debugging tool to check data integrity prior to and after transfer.
-	 * Could also be used for data integrity checks if the feature were
-	 * implemented.
+	 * Checks whether an optional flag was given on the command line
 	 * 
-	 * @param b
-	 *            A packet in byte array form
-	 * @return A checksum of the data in the given packet
+	 * @param argv
+	 *            The program's arguments
+	 * @param flag
+	 *            The flag to look for, e.g. "-direct"
+	 * @return True if the flag is among the arguments
+	 */
+	public static boolean hasFlag(String[] argv, String flag) {
+		for (String arg : argv) {
+			if (arg.equals(flag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the value given after an optional flag on the command line
+	 * 
+	 * @param argv
+	 *            The program's arguments
+	 * @param flag
+	 *            The flag to look for, e.g. "-rate"
+	 * @param def
+	 *            Value to use if the flag is not given
+	 * @return The argument following the flag, or def
 	 */
-	public static long getChecksum(byte[] b) {
-		CRC32 check = new CRC32();
-		check.update(b);
-		return check.getValue();
+	public static String getOption(String[] argv, String flag, String def) {
+		for (int x = 0; x < argv.length - 1; x++) {
+			if (argv[x].equals(flag)) {
+				return argv[x + 1];
+			}
+		}
+		return def;
 	}
 }